@@ -0,0 +1,133 @@
+package com.company.product.test;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * class LatencyHistogram
+ * Log-linear histogram of latencies in nanoseconds, safe to record into from many threads at once.
+ * Every power of two is split into SUB_BUCKETS linear buckets, so recorded values keep about 1.5% precision
+ * from a nanosecond up to hours, in a fixed array and without allocating per value.
+ * @author shoaibi
+ * @version 0.1
+ */
+public class LatencyHistogram {
+
+    /**
+     * Linear buckets per power of two, a power of two itself
+     */
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Largest power of two covered, larger values land in the last bucket
+     */
+    private static final int MAX_EXPONENT = 44;
+
+    private final AtomicLongArray counts = new AtomicLongArray(
+            (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+
+    /**
+     * Record a latency
+     * @param nanos long
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(0, nanos)));
+    }
+
+    /**
+     * Record a latency measured by a client that waits for every response before sending its next request,
+     * along with the ones requests held back meanwhile would have seen, had they been sent on schedule every
+     * expectedIntervalNanos. Corrects for coordinated omission, i.e. a stalled server also stalling the
+     * client and so hiding most of the stall from its measurements.
+     * @param nanos long
+     * @param expectedIntervalNanos long 0 to record nanos only
+     */
+    public void record(long nanos, long expectedIntervalNanos) {
+        record(nanos);
+        if (expectedIntervalNanos <= 0) {
+            return;
+        }
+        for (long missed = nanos - expectedIntervalNanos; missed >= expectedIntervalNanos;
+             missed -= expectedIntervalNanos) {
+            record(missed);
+        }
+    }
+
+    /**
+     * Number of values recorded
+     * @return long
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Value below which provided fraction of recorded values fall, to the precision of the buckets
+     * @param fraction double
+     * @return long nanoseconds, 0 if nothing was recorded
+     */
+    public long percentile(double fraction) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * fraction));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(counts.length() - 1);
+    }
+
+    /**
+     * Largest value recorded, to the precision of the buckets
+     * @return long nanoseconds, 0 if nothing was recorded
+     */
+    public long max() {
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) {
+                return highestValue(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Bucket of a value
+     * @param value long
+     * @return int
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        // first SUB_BUCKETS buckets hold 0 to SUB_BUCKETS - 1 exactly, every exponent after that gets its own
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Largest value landing in a bucket
+     * @param index int
+     * @return long
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long low = ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+        return low + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,73 @@
+package com.company.product.test.db;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class TableManagerBenchmark
+ * Cost of decoding counter rows read from Hbase with @see TableManager.getKeyValueMapFromResult(), for a single
+ * row as returned by a get and for a page of rows as returned by a scan. No Hbase needed.
+ * @author shoaibi
+ * @version 0.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TableManagerBenchmark {
+
+    /**
+     * Rows per scan page
+     */
+    private static final int PAGE = 1000;
+
+    private final Result single = row("orders", 42);
+
+    private final Result[] page = new Result[PAGE];
+
+    public TableManagerBenchmark() {
+        for (int i = 0; i < PAGE; i++) {
+            page[i] = row("topic-" + i, i);
+        }
+    }
+
+    @Benchmark
+    public int decodeRow() {
+        return TableManager.getKeyValueMapFromResult(single).size();
+    }
+
+    @Benchmark
+    public long decodePage() {
+        long size = 0;
+        for (Result r : page) {
+            size += TableManager.getKeyValueMapFromResult(r).size();
+        }
+        return size;
+    }
+
+    /**
+     * Result holding the counter of one topic, like the ones Hbase returns
+     * @param topicName String
+     * @param count long
+     * @return Result
+     */
+    private static Result row(String topicName, long count) {
+        return Result.create(new Cell[] {
+                new KeyValue(topicName.getBytes(), "counter".getBytes(), new byte[0], Bytes.toBytes(count)) });
+    }
+}
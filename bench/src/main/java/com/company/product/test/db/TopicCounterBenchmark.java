@@ -0,0 +1,81 @@
+package com.company.product.test.db;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class TopicCounterBenchmark
+ * Cost of counting a message through @see TopicCounter: the write-behind buffer, its size triggered flushes
+ * and the store behind it. Uses the in-memory store unless -Dcounter.store says otherwise, add
+ * -Dcounter.wal.dir to include the write-ahead log. Run with -t 4 to see the increments contend.
+ * @author shoaibi
+ * @version 0.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TopicCounterBenchmark {
+
+    static {
+        if (System.getProperty("counter.store") == null) {
+            System.setProperty("counter.store", "memory");
+        }
+    }
+
+    /**
+     * Topics spread over by the many topics benchmark
+     */
+    private static final String[] TOPICS = new String[1024];
+
+    static {
+        for (int i = 0; i < TOPICS.length; i++) {
+            TOPICS[i] = "topic-" + i;
+        }
+    }
+
+    /**
+     * Topic every thread counts next
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = 0;
+    }
+
+    /**
+     * Count and flush the hot topic, so there is something cached to read
+     */
+    @Setup
+    public void setup() {
+        TopicCounter.increment("hot");
+        TopicCounter.flush();
+    }
+
+    @Benchmark
+    public void incrementManyTopics(Cursor cursor) {
+        TopicCounter.increment(TOPICS[cursor.next++ & (TOPICS.length - 1)]);
+    }
+
+    @Benchmark
+    public void incrementHotTopic() {
+        TopicCounter.increment("hot");
+    }
+
+    @Benchmark
+    public long getCountCached() throws IOException {
+        return TopicCounter.getCount("hot");
+    }
+}
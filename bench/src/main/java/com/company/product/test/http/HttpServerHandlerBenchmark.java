@@ -0,0 +1,162 @@
+package com.company.product.test.http;
+
+import com.company.product.test.lifecycle.Service;
+import com.company.product.test.queue.MessageSink;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.util.CharsetUtil;
+import kafka.common.InvalidTopicException;
+import kafka.common.Topic;
+import org.apache.kafka.clients.producer.Callback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class HttpServerHandlerBenchmark
+ * Cost of a request through the same pipeline HttpServer sets up, minus the socket: raw request bytes are
+ * decoded, parsed and validated by @see HttpServerHandler, handed to a sink that accepts right away and the
+ * response is encoded back to bytes. Every thread gets EmbeddedChannels of its own.
+ * @author shoaibi
+ * @version 0.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpServerHandlerBenchmark {
+
+    /**
+     * Validates like the real sinks do and acknowledges on the spot
+     */
+    private static final MessageSink ACCEPTING_SINK = new MessageSink() {
+        @Override
+        public void send(String topicName, String messageContent, Callback callback) throws InvalidTopicException {
+            Topic.validate(topicName);
+            callback.onCompletion(null, null);
+        }
+
+        @Override
+        public boolean mayBlock() {
+            return false;
+        }
+
+        @Override
+        public Service getService() {
+            return READY;
+        }
+    };
+
+    /**
+     * Service of ACCEPTING_SINK, always ready
+     */
+    private static final Service READY = new Service("accepting-sink") {
+        @Override
+        protected void doStart() {
+        }
+
+        @Override
+        protected void doStop() {
+        }
+    };
+
+    private Request valid;
+    private Request invalidTopic;
+    private Request missingMessage;
+    private Request bulk;
+
+    @Setup
+    public void setup() {
+        READY.start();
+        valid = new Request("GET /?topic=orders&message=Message+goes+here HTTP/1.1\r\nHost: bench\r\n\r\n");
+        invalidTopic = new Request("GET /?topic=bad%20topic&message=hello HTTP/1.1\r\nHost: bench\r\n\r\n");
+        missingMessage = new Request("GET /?topic=orders HTTP/1.1\r\nHost: bench\r\n\r\n");
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append("orders\tmessage number ").append(i).append('\n');
+        }
+        bulk = new Request("POST /bulk HTTP/1.1\r\nHost: bench\r\nContent-Length: " + body.length() + "\r\n\r\n"
+                + body);
+    }
+
+    /**
+     * GET of a valid message, answered with 204
+     * @return long response bytes
+     */
+    @Benchmark
+    public long getValid() {
+        return valid.run();
+    }
+
+    /**
+     * GET with an invalid topic name, answered with 400
+     * @return long response bytes
+     */
+    @Benchmark
+    public long getInvalidTopic() {
+        return invalidTopic.run();
+    }
+
+    /**
+     * GET without a message, answered with 500
+     * @return long response bytes
+     */
+    @Benchmark
+    public long getMissingMessage() {
+        return missingMessage.run();
+    }
+
+    /**
+     * POST /bulk of 100 records, answered with 200
+     * @return long response bytes
+     */
+    @Benchmark
+    public long postBulk() {
+        return bulk.run();
+    }
+
+    /**
+     * Writes one request into the channel and drains the response
+     */
+    private static final class Request {
+        private final EmbeddedChannel channel = new EmbeddedChannel(new HttpRequestDecoder(),
+                new HttpResponseEncoder(), new HttpServerHandler(ACCEPTING_SINK));
+        private final byte[] request;
+
+        Request(String request) {
+            this.request = request.getBytes(CharsetUtil.US_ASCII);
+        }
+
+        long run() {
+            channel.writeInbound(Unpooled.wrappedBuffer(request));
+            channel.flush();
+            long bytes = 0;
+            Object out;
+            while ((out = channel.readOutbound()) != null) {
+                if (out instanceof ByteBuf) {
+                    bytes += ((ByteBuf) out).readableBytes();
+                    ((ByteBuf) out).release();
+                }
+            }
+            if (bytes == 0) {
+                throw new IllegalStateException("No response");
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,633 @@
+package com.company.product.test.http;
+
+import com.company.product.test.LatencyHistogram;
+import com.company.product.test.queue.LocalBroker;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * class LoadGenerator
+ * Drives ingest requests at an @see HttpServer over keep-alive connections and reports throughput, latency
+ * percentiles and end-to-end lag, i.e. how long a message takes from being sent until its count can be read
+ * back from /counters.
+ * Two ways of generating load:
+ * open   requests are sent on a fixed schedule of load.rate per second whether or not earlier ones were
+ *        answered, and latency is measured from when a request was due, not from when it actually went out.
+ *        A stalled server then shows up in the latency of every request that was due meanwhile, instead of
+ *        quietly lowering the rate (coordinated omission).
+ * closed every connection keeps load.pipeline requests outstanding, sending the next as soon as one is
+ *        answered. Finds the highest sustainable throughput. Latencies are reported as measured and corrected
+ *        for coordinated omission against the mean latency seen during warm-up, or load.expectedIntervalMicros.
+ * Topics are picked from load.topics names with a Zipf distribution of exponent load.skew (0 for uniform).
+ * Lag is measured by a probe sending a message to its own topic every load.probeIntervalMillis while polling
+ * the count of that topic, so it includes flushing and the counter cache.
+ * Without load.host a server is started in this jvm, with Hbase replaced by the in-memory store and, unless
+ * -Dpipeline.mode=embedded, Kafka replaced by a @see LocalBroker. Server and load then share the cpus, so
+ * absolute numbers are pessimistic.
+ * Run with: gradle :bench:load -PjvmArgs='-Dload.mode=open -Dload.rate=20000'
+ * @author shoaibi
+ * @version 0.1
+ */
+public class LoadGenerator {
+
+    /**
+     * open or closed
+     */
+    static final String MODE = System.getProperty("load.mode", "open");
+
+    /**
+     * Requests per second sent in open mode
+     */
+    static final int RATE = Integer.getInteger("load.rate", 10000);
+
+    /**
+     * Keep-alive connections requests are spread over
+     */
+    static final int CONNECTIONS = Integer.getInteger("load.connections", 8);
+
+    /**
+     * Requests each connection keeps outstanding in closed mode
+     */
+    static final int PIPELINE = Integer.getInteger("load.pipeline", 1);
+
+    /**
+     * Interval between requests of a connection slot assumed by closed mode when correcting latencies,
+     * 0 to use the mean latency seen during warm-up
+     */
+    static final long EXPECTED_INTERVAL_MICROS = Long.getLong("load.expectedIntervalMicros", 0);
+
+    /**
+     * Seconds of load before measuring starts, and seconds measured
+     */
+    static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 5);
+    static final int DURATION_SECONDS = Integer.getInteger("load.durationSeconds", 30);
+
+    /**
+     * Number of distinct topics and skew of their popularity
+     */
+    static final int TOPICS = Integer.getInteger("load.topics", 1000);
+    static final double SKEW = Double.parseDouble(System.getProperty("load.skew", "1.0"));
+
+    /**
+     * Length of every message
+     */
+    static final int MESSAGE_BYTES = Integer.getInteger("load.messageBytes", 100);
+
+    /**
+     * Server to load, a server is started in this jvm if no host is given
+     */
+    static final String HOST = System.getProperty("load.host");
+    static final int PORT = Integer.getInteger("load.port", 8080);
+
+    /**
+     * Threads running the client connections
+     */
+    static final int THREADS = Integer.getInteger("load.threads", 2);
+
+    /**
+     * How often the probe sends a message, in milliseconds
+     */
+    static final long PROBE_INTERVAL_MILLIS = Long.getLong("load.probeIntervalMillis", 100);
+
+    /**
+     * Records the local broker holds and threads consuming them, when standing in for Kafka
+     */
+    static final int BROKER_CAPACITY = Integer.getInteger("load.broker.capacity", 65536);
+    static final int BROKER_CONSUMERS = Integer.getInteger("load.broker.consumers", 2);
+
+    /**
+     * Topic probe messages are sent to
+     */
+    static final String PROBE_TOPIC = "loadgen-probe";
+
+    /**
+     * How long to wait for outstanding responses and probes once done sending, in seconds
+     */
+    static final int DRAIN_SECONDS = 30;
+
+    /**
+     * Pattern of the count in the response to a counter query
+     */
+    private static final Pattern COUNT = Pattern.compile("\"count\":(\\d+)");
+
+    /**
+     * Point the in-process server at the stand-ins before any of its classes load
+     */
+    static {
+        if (HOST == null) {
+            setIfMissing("counter.store", "memory");
+            setIfMissing("producer.createTopics", "false");
+        }
+    }
+
+    /**
+     * Latency from when a request was due until its response, by intended start in closed mode
+     */
+    private static final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Closed mode latencies corrected for coordinated omission
+     */
+    private static final LatencyHistogram corrected = new LatencyHistogram();
+
+    /**
+     * Time from sending a probe until its count could be read
+     */
+    private static final LatencyHistogram lag = new LatencyHistogram();
+
+    /**
+     * Sum of warm-up latencies and their number, to derive the closed mode expected interval
+     */
+    private static final AtomicLong warmupNanos = new AtomicLong();
+    private static final AtomicLong warmupCount = new AtomicLong();
+
+    /**
+     * Measured responses by status code
+     */
+    private static final AtomicLongArray statuses = new AtomicLongArray(600);
+
+    /**
+     * Requests sent and answered, measured or not
+     */
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong answered = new AtomicLong();
+
+    /**
+     * Window requests are measured in, by when they were due
+     */
+    private static volatile long measureStart = Long.MAX_VALUE;
+    private static volatile long measureEnd = Long.MAX_VALUE;
+
+    /**
+     * Expected interval used for correcting closed mode latencies, set once warm-up is over
+     */
+    private static volatile long expectedIntervalNanos = 0;
+
+    /**
+     * Cleared to stop sending
+     */
+    private static volatile boolean running = true;
+
+    /**
+     * Request uri of every topic, most popular first
+     */
+    private static String[] uris;
+
+    /**
+     * Picks topics
+     */
+    private static Zipf zipf;
+
+    public static void main(String[] args) throws Exception {
+        if (!"open".equals(MODE) && !"closed".equals(MODE)) {
+            throw new IllegalArgumentException("Unknown load mode: " + MODE);
+        }
+        String host = HOST;
+        if (host == null) {
+            host = "127.0.0.1";
+            startServer();
+        }
+        char[] message = new char[MESSAGE_BYTES];
+        Arrays.fill(message, 'x');
+        uris = new String[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            uris[i] = "/?topic=topic-" + i + "&message=" + new String(message);
+        }
+        zipf = new Zipf(TOPICS, SKEW);
+
+        EventLoopGroup group = new NioEventLoopGroup(THREADS);
+        try {
+            Bootstrap b = new Bootstrap();
+            b.group(group)
+             .channel(NioSocketChannel.class)
+             .option(ChannelOption.TCP_NODELAY, true)
+             .handler(new ChannelInitializer<SocketChannel>() {
+                 @Override
+                 public void initChannel(SocketChannel ch) throws Exception {
+                     ch.pipeline()
+                       .addLast(new HttpClientCodec())
+                       .addLast(new HttpObjectAggregator(65536))
+                       .addLast(new Connection());
+                 }
+             });
+            Connection[] connections = new Connection[CONNECTIONS];
+            for (int i = 0; i < CONNECTIONS; i++) {
+                Channel channel = b.connect(host, PORT).sync().channel();
+                connections[i] = channel.pipeline().get(Connection.class);
+            }
+
+            final String baseUrl = "http://" + host + ":" + PORT;
+            Thread probe = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    probe(baseUrl);
+                }
+            }, "load-probe");
+            probe.setDaemon(true);
+
+            System.out.println("Sending " + MODE + " loop load" + ("open".equals(MODE) ? " at " + RATE + " req/s" : "")
+                    + " over " + CONNECTIONS + " connections to " + baseUrl + ", " + TOPICS + " topics with skew "
+                    + SKEW + ", warming up for " + WARMUP_SECONDS + "s then measuring for " + DURATION_SECONDS + "s");
+            long start = System.nanoTime();
+            measureStart = start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+            measureEnd = measureStart + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+            probe.start();
+            if ("open".equals(MODE)) {
+                openLoop(connections, start);
+            } else {
+                closedLoop(connections);
+            }
+            running = false;
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+            while (answered.get() < sent.get() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            probe.join(TimeUnit.SECONDS.toMillis(DRAIN_SECONDS));
+            report(sent.get() - answered.get());
+        } finally {
+            group.shutdownGracefully();
+        }
+        // in-process server does not stop on its own, its shutdown hooks flush the counters
+        System.exit(0);
+    }
+
+    /**
+     * Send requests on schedule until measuring is over, regardless of responses
+     * @param connections Connection[]
+     * @param start long
+     */
+    private static void openLoop(Connection[] connections, long start) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, RATE);
+        for (long i = 0; ; i++) {
+            long due = start + i * intervalNanos;
+            if (due >= measureEnd) {
+                return;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            // falling behind sends the overdue requests right away, they are still timed from when they were due
+            connections[(int) (i % connections.length)].send(due);
+        }
+    }
+
+    /**
+     * Keep PIPELINE requests outstanding on every connection until measuring is over
+     * @param connections Connection[]
+     * @throws InterruptedException
+     */
+    private static void closedLoop(Connection[] connections) throws InterruptedException {
+        for (Connection connection : connections) {
+            for (int i = 0; i < PIPELINE; i++) {
+                connection.send(System.nanoTime());
+            }
+        }
+        TimeUnit.NANOSECONDS.sleep(measureStart - System.nanoTime());
+        long warmups = warmupCount.get();
+        expectedIntervalNanos = EXPECTED_INTERVAL_MICROS > 0
+                ? TimeUnit.MICROSECONDS.toNanos(EXPECTED_INTERVAL_MICROS)
+                : warmups == 0 ? 0 : warmupNanos.get() / warmups;
+        TimeUnit.NANOSECONDS.sleep(measureEnd - System.nanoTime());
+    }
+
+    /**
+     * Account for an answered request
+     * @param due long when the request was due
+     * @param now long
+     * @param status int
+     */
+    private static void completed(long due, long now, int status) {
+        answered.incrementAndGet();
+        long nanos = now - due;
+        if (due < measureStart) {
+            warmupNanos.addAndGet(nanos);
+            warmupCount.incrementAndGet();
+            return;
+        }
+        if (due >= measureEnd) {
+            return;
+        }
+        latency.record(nanos);
+        corrected.record(nanos, expectedIntervalNanos);
+        if (status >= 0 && status < statuses.length()) {
+            statuses.incrementAndGet(status);
+        }
+    }
+
+    /**
+     * Send a message to PROBE_TOPIC every PROBE_INTERVAL_MILLIS while load is running and poll its count,
+     * recording for every probe how long it took to be counted. Probes are assumed to be counted in the order
+     * they were sent.
+     * @param baseUrl String
+     */
+    private static void probe(String baseUrl) {
+        Queue<Long> pending = new ArrayDeque<>();
+        long baseline;
+        try {
+            baseline = probeCount(baseUrl);
+        } catch (IOException e) {
+            System.err.println("Unable to read the probe count, no lag measured: " + e);
+            return;
+        }
+        long confirmed = 0;
+        long nextProbe = System.nanoTime();
+        long deadline = Long.MAX_VALUE;
+        while (System.nanoTime() < deadline) {
+            try {
+                long now = System.nanoTime();
+                if (running && now >= nextProbe) {
+                    nextProbe = now + TimeUnit.MILLISECONDS.toNanos(PROBE_INTERVAL_MILLIS);
+                    if (status(baseUrl + "/?topic=" + PROBE_TOPIC + "&message=probe") == 204) {
+                        pending.add(now);
+                    }
+                }
+                long visible = probeCount(baseUrl) - baseline;
+                now = System.nanoTime();
+                for (; confirmed < visible && !pending.isEmpty(); confirmed++) {
+                    long probeSent = pending.poll();
+                    if (probeSent >= measureStart && probeSent < measureEnd) {
+                        lag.record(now - probeSent);
+                    }
+                }
+                if (!running) {
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    if (deadline == Long.MAX_VALUE) {
+                        deadline = now + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+                    }
+                }
+                Thread.sleep(1);
+            } catch (IOException e) {
+                System.err.println("Probe failed: " + e);
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Current count of PROBE_TOPIC
+     * @param baseUrl String
+     * @return long
+     * @throws IOException
+     */
+    private static long probeCount(String baseUrl) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + CounterQuery.PATH + "/" + PROBE_TOPIC)
+                .openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                body.write(buffer, 0, read);
+            }
+            Matcher matcher = COUNT.matcher(body.toString("UTF-8"));
+            if (!matcher.find()) {
+                throw new IOException("No count in " + body);
+            }
+            return Long.parseLong(matcher.group(1));
+        }
+    }
+
+    /**
+     * Status of a GET to url
+     * @param url String
+     * @return int
+     * @throws IOException
+     */
+    private static int status(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            // lets the keep-alive connection be reused
+            in.close();
+        }
+        return status;
+    }
+
+    /**
+     * Print the results of the measured window
+     * @param unanswered long
+     */
+    private static void report(long unanswered) {
+        long measured = latency.count();
+        System.out.printf("%nthroughput   %.1f req/s answered (%d requests measured)%n",
+                (double) measured / DURATION_SECONDS, measured);
+        StringBuilder responses = new StringBuilder();
+        for (int status = 0; status < statuses.length(); status++) {
+            if (statuses.get(status) > 0) {
+                responses.append("  ").append(status).append(": ").append(statuses.get(status));
+            }
+        }
+        System.out.println("responses   " + responses + (unanswered > 0 ? "  unanswered: " + unanswered : ""));
+        if ("open".equals(MODE)) {
+            printLatencies("latency", latency);
+        } else {
+            printLatencies("latency", latency);
+            printLatencies("corrected", corrected);
+            System.out.printf("             (expected interval %.1f us)%n", expectedIntervalNanos / 1e3);
+        }
+        printLatencies("e2e lag", lag);
+        System.out.println("             (" + lag.count() + " probes)");
+    }
+
+    /**
+     * Print percentiles of histogram, in milliseconds
+     * @param name String
+     * @param histogram LatencyHistogram
+     */
+    private static void printLatencies(String name, LatencyHistogram histogram) {
+        System.out.printf("%-11s  p50 %.3f ms  p90 %.3f ms  p99 %.3f ms  p99.9 %.3f ms  max %.3f ms%n", name,
+                histogram.percentile(0.5) / 1e6, histogram.percentile(0.9) / 1e6, histogram.percentile(0.99) / 1e6,
+                histogram.percentile(0.999) / 1e6, histogram.max() / 1e6);
+    }
+
+    /**
+     * Start a server on PORT in this jvm, publishing to a @see LocalBroker unless in embedded pipeline mode,
+     * and wait for it to listen and be ready
+     * @throws Exception
+     */
+    private static void startServer() throws Exception {
+        if ("kafka".equals(System.getProperty("pipeline.mode", "kafka"))) {
+            LocalBroker.install(BROKER_CAPACITY, BROKER_CONSUMERS);
+        }
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new HttpServer(PORT).run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "load-server");
+        server.setDaemon(true);
+        server.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", PORT), 1000);
+                break;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline || !server.isAlive()) {
+                    throw new IllegalStateException("Server did not start listening on port " + PORT, e);
+                }
+                Thread.sleep(100);
+            }
+        }
+        // listening does not mean the services behind it are ready, requests would get 503 until they are
+        long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (!HttpServerHandler.lifecycle.awaitReady(Math.max(0, left))) {
+            throw new IllegalStateException("Server did not become ready");
+        }
+    }
+
+    /**
+     * Set a system property unless it was set already
+     * @param key String
+     * @param value String
+     */
+    private static void setIfMissing(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    /**
+     * A keep-alive connection, responses come back in the order requests were sent
+     */
+    private static final class Connection extends SimpleChannelInboundHandler<FullHttpResponse> {
+
+        /**
+         * When every outstanding request was due, oldest first. Only touched on the event loop.
+         */
+        private final Queue<Long> outstanding = new ArrayDeque<>();
+
+        private Channel channel;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            channel = ctx.channel();
+            super.channelActive(ctx);
+        }
+
+        /**
+         * Send a request for a random topic, from any thread
+         * @param due long when the request was due
+         */
+        void send(final long due) {
+            sent.incrementAndGet();
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(due);
+                }
+            });
+        }
+
+        /**
+         * Send a request for a random topic, on the event loop
+         * @param due long
+         */
+        private void write(long due) {
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+                    uris[zipf.next(ThreadLocalRandom.current())]);
+            request.headers().set(HttpHeaders.Names.HOST, HOST == null ? "127.0.0.1" : HOST);
+            outstanding.add(due);
+            channel.writeAndFlush(request);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+            long now = System.nanoTime();
+            Long due = outstanding.poll();
+            if (due == null) {
+                return;
+            }
+            completed(due, now, response.getStatus().code());
+            if (running && "closed".equals(MODE)) {
+                sent.incrementAndGet();
+                write(System.nanoTime());
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+
+    /**
+     * Zipf distribution over ranks 0 to n - 1, rank k being picked with a probability proportional to
+     * 1 / (k + 1)^exponent
+     */
+    static final class Zipf {
+
+        /**
+         * Probability of picking a rank up to and including the index
+         */
+        private final double[] cumulative;
+
+        Zipf(int n, double exponent) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1 / Math.pow(k + 1, exponent);
+                cumulative[k] = sum;
+            }
+            for (int k = 0; k < n; k++) {
+                cumulative[k] /= sum;
+            }
+        }
+
+        /**
+         * Pick a rank
+         * @param random Random
+         * @return int
+         */
+        int next(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(cumulative.length - 1, index >= 0 ? index : -index - 1);
+        }
+    }
+}
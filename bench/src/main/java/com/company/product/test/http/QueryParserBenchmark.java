@@ -0,0 +1,64 @@
+package com.company.product.test.http;
+
+import io.netty.handler.codec.http.QueryStringDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class QueryParserBenchmark
+ * Compares time spent per request by the QueryStringDecoder based parsing the ingest handler used to do with
+ * @see QueryParser. Run with -prof gc to compare bytes allocated too.
+ * @author shoaibi
+ * @version 0.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryParserBenchmark {
+
+    /**
+     * Request uri, one plain and one with an encoded message
+     */
+    @Param({ "/?topic=orders&message=hello", "/?topic=test&message=Message+goes+here" })
+    public String uri;
+
+    private final QueryParser parser = new QueryParser();
+
+    /**
+     * What HttpServerHandler did before QueryParser
+     * @return int
+     */
+    @Benchmark
+    public int queryStringDecoder() {
+        Map<String, List<String>> qs = new QueryStringDecoder(uri).parameters();
+        if (qs.isEmpty() || qs.size() > 2 || !qs.containsKey("topic") || !qs.containsKey("message")) {
+            throw new IllegalArgumentException();
+        }
+        return qs.get("topic").get(0).length() + qs.get("message").get(0).length();
+    }
+
+    /**
+     * What HttpServerHandler does now
+     * @return int
+     */
+    @Benchmark
+    public int queryParser() {
+        parser.parse(uri);
+        return parser.topic().length() + parser.message().length();
+    }
+}
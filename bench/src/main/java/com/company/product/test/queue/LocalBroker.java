@@ -0,0 +1,174 @@
+package com.company.product.test.queue;
+
+import com.company.product.test.db.TopicCounter;
+import org.apache.kafka.clients.producer.BufferExhaustedException;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * class LocalBroker
+ * In-process stand-in for a Kafka broker and the @see MessageConsumer reading from it, so the whole
+ * HttpServer -> MessageProducer -> consumer -> TopicCounter path can be load tested on one machine.
+ * It replaces the Kafka client of @see MessageProducer: records are appended to a bounded @see RingBuffer
+ * and acknowledged right away, like a leader does with acks=1, and consumer threads drain the buffer
+ * calling @see TopicCounter.increment() for every record, like MessageConsumer does. A full buffer turns
+ * sends away with BufferExhaustedException, like a producer whose buffer memory ran out.
+ * @author shoaibi
+ * @version 0.1
+ */
+public class LocalBroker implements Producer<String, String> {
+
+    /**
+     * How long an idle consumer parks between polls, in nanoseconds
+     */
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * Topics of records appended but not consumed yet
+     */
+    private final RingBuffer<String> log;
+
+    /**
+     * Offset of the next record appended
+     */
+    private final AtomicLong offset = new AtomicLong();
+
+    /**
+     * Threads standing in for the consumer
+     */
+    private final Thread[] consumers;
+
+    /**
+     * Cleared by close(), consumers stop once log is drained
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Start the consumers
+     * @param capacity int records appended but not consumed yet before sends are turned away
+     * @param consumerCount int
+     */
+    LocalBroker(int capacity, int consumerCount) {
+        log = new RingBuffer<>(capacity);
+        consumers = new Thread[consumerCount];
+        for (int i = 0; i < consumerCount; i++) {
+            consumers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    consume();
+                }
+            }, "local-consumer-" + (i + 1));
+            consumers[i].setDaemon(true);
+            consumers[i].start();
+        }
+    }
+
+    /**
+     * Make @see MessageProducer publish to a fresh local broker instead of Kafka. Pass -Dproducer.createTopics=false
+     * as well, so topics are not created through zookeeper either.
+     * @param capacity int
+     * @param consumerCount int
+     * @return LocalBroker
+     */
+    public static LocalBroker install(int capacity, int consumerCount) {
+        LocalBroker broker = new LocalBroker(capacity, consumerCount);
+        Producer<String, String> kafka = MessageProducer.producer;
+        MessageProducer.producer = broker;
+        if (kafka != null) {
+            kafka.close();
+        }
+        return broker;
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, String> record) {
+        return send(record, null);
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, String> record, Callback callback) {
+        if (!log.offer(record.topic())) {
+            throw new BufferExhaustedException(log.capacity() + " records waiting to be consumed");
+        }
+        final RecordMetadata metadata = new RecordMetadata(new TopicPartition(record.topic(), 0),
+                offset.getAndIncrement(), 0);
+        if (callback != null) {
+            callback.onCompletion(metadata, null);
+        }
+        FutureTask<RecordMetadata> future = new FutureTask<>(new Callable<RecordMetadata>() {
+            @Override
+            public RecordMetadata call() {
+                return metadata;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Map<MetricName, ? extends Metric> metrics() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Number of records waiting to be consumed
+     * @return int
+     */
+    public int lag() {
+        return log.size();
+    }
+
+    /**
+     * Stop the consumers once everything appended so far is consumed
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (Thread consumer : consumers) {
+            try {
+                consumer.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Consumer loop: count records as they come, parking while there are none
+     */
+    private void consume() {
+        while (true) {
+            String topicName = log.poll();
+            if (topicName == null) {
+                if (!running) {
+                    return;
+                }
+                LockSupport.parkNanos(PARK_NANOS);
+                continue;
+            }
+            TopicCounter.increment(topicName);
+        }
+    }
+}
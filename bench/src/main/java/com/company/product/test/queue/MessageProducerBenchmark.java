@@ -0,0 +1,133 @@
+package com.company.product.test.queue;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class MessageProducerBenchmark
+ * Overhead @see MessageProducer adds on top of the Kafka client: topic validation through the topic cache,
+ * in-flight accounting, metrics and callback wrapping, for async and blocking sends. The Kafka
+ * producer is swapped for a stub acknowledging every record on the spot and topics are not created through
+ * zookeeper, so no broker is needed. Run with -t 4 to see the async sends contend.
+ * @author shoaibi
+ * @version 0.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageProducerBenchmark {
+
+    static {
+        System.setProperty("producer.createTopics", "false");
+    }
+
+    /**
+     * Topics the async sends go round
+     */
+    private static final String[] TOPICS = { "orders", "payments", "clicks", "views" };
+
+    private static final Callback CALLBACK = new Callback() {
+        @Override
+        public void onCompletion(RecordMetadata metadata, Exception exception) {
+        }
+    };
+
+    /**
+     * Topic every thread sends to next
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = 0;
+    }
+
+    @Setup
+    public void setup() {
+        // installed before the producer service starts, which then leaves it in place
+        MessageProducer.producer = new StubProducer();
+    }
+
+    /**
+     * Send without waiting, over a handful of topics
+     * @param cursor Cursor
+     */
+    @Benchmark
+    public void sendMessageAsync(Cursor cursor) {
+        MessageProducer.sendMessageAsync(TOPICS[cursor.next++ & 3], "Message goes here", CALLBACK);
+    }
+
+    @Benchmark
+    public void sendMessage() {
+        MessageProducer.sendMessage("orders", "Message goes here");
+    }
+
+    /**
+     * Acknowledges every record as soon as it is sent
+     */
+    private static final class StubProducer implements Producer<String, String> {
+        private static final RecordMetadata METADATA = new RecordMetadata(new TopicPartition("orders", 0), 0, 0);
+        private static final FutureTask<RecordMetadata> DONE = new FutureTask<>(new Callable<RecordMetadata>() {
+            @Override
+            public RecordMetadata call() {
+                return METADATA;
+            }
+        });
+
+        static {
+            DONE.run();
+        }
+
+        @Override
+        public Future<RecordMetadata> send(ProducerRecord<String, String> record) {
+            return send(record, null);
+        }
+
+        @Override
+        public Future<RecordMetadata> send(ProducerRecord<String, String> record, Callback callback) {
+            if (callback != null) {
+                callback.onCompletion(METADATA, null);
+            }
+            return DONE;
+        }
+
+        @Override
+        public List<PartitionInfo> partitionsFor(String topic) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Map<MetricName, ? extends Metric> metrics() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.company.product.test.db;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * class CounterAggregator
+ * Write-behind buffer between @see TopicCounter and its @see CounterStore: increments are summed per topic in
+ * memory and flushed as one batch whenever enough are pending or the flush interval elapses.
+ * @author shoaibi
+ * @version 0.1
+ */
+class CounterAggregator {
+
+    /**
+     * Marker value of a delta cell that has been idle for a whole flush and is being dropped from the map.
+     * Writers seeing it have to install a fresh cell instead.
+     */
+    private static final long RETIRED = Long.MIN_VALUE;
+
+    /**
+     * Pending deltas keyed by topic name. ConcurrentHashMap is internally striped so writers for
+     * different topics rarely contend and the cells themselves are updated with CAS only.
+     */
+    private final ConcurrentHashMap<String, AtomicLong> deltas = new ConcurrentHashMap<>();
+
+    /**
+     * Number of increments accepted since the last flush, used for the size trigger
+     */
+    private final AtomicLong pending = new AtomicLong();
+
+    /**
+     * Set while a size-triggered flush is queued so a burst of writers only schedules one
+     */
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    /**
+     * Store the deltas are flushed to
+     */
+    private final CounterStore store;
+
+    /**
+     * Flush once this many increments are pending
+     */
+    private final long maxPending;
+
+    /**
+     * Flush at least this often, in milliseconds
+     */
+    private final long flushIntervalMillis;
+
+    /**
+     * Single thread running both the periodic and the size-triggered flushes
+     */
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Whether the size and time triggers flush on their own, flushes are only explicit otherwise
+     */
+    private volatile boolean autoFlush = true;
+
+    /**
+     * Whether flushed batches are also written to the time bucketed rollups
+     */
+    private final boolean rollups;
+
+    /**
+     * Most buckets of every granularity kept in memory while they can not be written, older ones are dropped
+     */
+    private static final int MAX_UNWRITTEN_BUCKETS = 60;
+
+    /**
+     * Topic deltas dropped from the rollups without ever being written
+     */
+    static final Meter droppedRollups = Metrics.newMeter(TopicCounter.class, "dropped-rollups", "deltas",
+            TimeUnit.SECONDS);
+
+    /**
+     * Failed deltas kept in memory only, because logging them again before truncating their records failed
+     */
+    static final Meter unloggedDeltas = Metrics.newMeter(TopicCounter.class, "unlogged-deltas", "deltas",
+            TimeUnit.SECONDS);
+
+    /**
+     * Rollups of flushed deltas that did not make it to the store yet. Only touched by flush().
+     */
+    private RollupDeltas unwrittenRollups = new RollupDeltas();
+
+    /**
+     * Sketches of the most counted topics flushed deltas are offered to, null if they are not tracked
+     */
+    private final HotTopics hotTopics;
+
+    /**
+     * Write-ahead log of buffered increments, null if they are not logged
+     */
+    private final DeltaLog log;
+
+    /**
+     * Held shared while an increment is logged and buffered, exclusively while a flush marks the log and drains
+     * the buffer, so every drained delta is logged before the mark and every other one after it
+     */
+    private final ReadWriteLock logLock = new ReentrantReadWriteLock();
+
+    /**
+     * Set once close() has been called
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Number of add() calls under way, close() waits for them before its final flush
+     */
+    private final AtomicInteger adding = new AtomicInteger();
+
+    /**
+     * Setup the aggregator and start the periodic flush
+     * @param store CounterStore
+     * @param maxPending long
+     * @param flushIntervalMillis long
+     * @param rollups boolean
+     * @param hotTopics HotTopics null to not track hot topics
+     * @param log DeltaLog null to not log increments
+     */
+    CounterAggregator(CounterStore store, long maxPending, long flushIntervalMillis, boolean rollups,
+                      HotTopics hotTopics, DeltaLog log) {
+        this.store = store;
+        this.hotTopics = hotTopics;
+        this.log = log;
+        this.maxPending = maxPending;
+        this.rollups = rollups;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "counter-flusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (autoFlush) {
+                    flush();
+                }
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add delta to the pending counter of provided topic name
+     * @param topicName String
+     * @param delta long
+     * @throws IllegalStateException if closed, or if the delta could not be logged
+     */
+    void add(String topicName, long delta) throws IllegalStateException {
+        // counted before checking closed, so close() either sees this add under way or it sees closed
+        adding.incrementAndGet();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Counter aggregator is closed");
+            }
+            if (log == null) {
+                addDelta(topicName, delta);
+            } else {
+                logLock.readLock().lock();
+                try {
+                    log.append(topicName, delta);
+                    addDelta(topicName, delta);
+                } catch (IOException ioe) {
+                    throw new IllegalStateException("Unable to log delta of " + topicName, ioe);
+                } finally {
+                    logLock.readLock().unlock();
+                }
+            }
+            if (pending.addAndGet(delta) >= maxPending && autoFlush && flushQueued.compareAndSet(false, true)) {
+                flusher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushQueued.set(false);
+                        flush();
+                    }
+                });
+            }
+        } finally {
+            adding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Lock-free add of delta to the cell of provided topic name, replacing retired cells on the way
+     * @param topicName String
+     * @param delta long
+     */
+    private void addDelta(String topicName, long delta) {
+        while (true) {
+            AtomicLong cell = deltas.get(topicName);
+            if (cell == null) {
+                AtomicLong fresh = new AtomicLong(delta);
+                cell = deltas.putIfAbsent(topicName, fresh);
+                if (cell == null) {
+                    return;
+                }
+            }
+            long current = cell.get();
+            if (current == RETIRED) {
+                // flusher is dropping this cell, help it out and retry with a fresh one
+                deltas.remove(topicName, cell);
+                continue;
+            }
+            if (cell.compareAndSet(current, current + delta)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Buffer the deltas a previous run logged but never flushed. They stay in the log until the next successful
+     * flush, so call flush() right after.
+     * @return long number of topics recovered
+     */
+    long replay() {
+        if (log == null) {
+            return 0;
+        }
+        Map<String, Long> recovered = log.replay();
+        for (Map.Entry<String, Long> entry : recovered.entrySet()) {
+            addDelta(entry.getKey(), entry.getValue());
+            pending.addAndGet(entry.getValue());
+        }
+        return recovered.size();
+    }
+
+    /**
+     * Commit everything logged so far, so replay covers it from now on
+     * @return long mark of the previous commit, for @see rollbackLog()
+     * @throws IllegalStateException if increments are not logged, or the log was not opened for commits
+     */
+    long commitLog() throws IllegalStateException {
+        if (log == null) {
+            throw new IllegalStateException("Counter increments are not logged");
+        }
+        long mark;
+        logLock.writeLock().lock();
+        try {
+            mark = log.mark();
+        } finally {
+            logLock.writeLock().unlock();
+        }
+        return log.commit(mark);
+    }
+
+    /**
+     * Roll back to a previous commit, so replay leaves out what was committed since
+     * @param mark long as returned by commitLog()
+     * @throws IllegalStateException if increments are not logged, or the log was not opened for commits
+     */
+    void rollbackLog(long mark) throws IllegalStateException {
+        if (log == null) {
+            throw new IllegalStateException("Counter increments are not logged");
+        }
+        log.commit(mark);
+    }
+
+    /**
+     * Turn the size and time triggers on or off
+     * @param autoFlush boolean
+     */
+    void setAutoFlush(boolean autoFlush) {
+        this.autoFlush = autoFlush;
+    }
+
+    /**
+     * Drain all pending deltas and write them to the store in one batch.
+     * Deltas the store could not apply are put back so the next flush retries them, and only them: the store
+     * applies every topic on its own, so a failed batch may still have applied some.
+     * @return boolean true if there was nothing to write or the whole write succeeded
+     */
+    synchronized boolean flush() {
+        Map<String, Long> batch;
+        long logMark = -1;
+        if (log == null) {
+            batch = drain();
+        } else {
+            logLock.writeLock().lock();
+            try {
+                logMark = log.mark();
+                batch = drain();
+            } finally {
+                logLock.writeLock().unlock();
+            }
+        }
+
+        if (batch.isEmpty()) {
+            if (!unwrittenRollups.isEmpty()) {
+                writeRollups();
+            }
+            truncateLog(logMark);
+            return true;
+        }
+
+        Map<String, Long> failed;
+        try {
+            failed = store.increment(batch);
+        } catch (IOException ioe) {
+            System.err.println("Unable to flush counters for " + batch.size() + " topics, will retry");
+            ioe.printStackTrace();
+            // still logged before logMark, which is not truncated
+            requeue(batch, false);
+            return false;
+        }
+        if (!failed.isEmpty()) {
+            System.err.println("Unable to flush counters for " + failed.size() + " of " + batch.size()
+                    + " topics, will retry them");
+            // the applied deltas must not be replayed, so the failed ones are logged again past logMark
+            requeue(failed, logMark >= 0);
+            batch.keySet().removeAll(failed.keySet());
+        }
+        truncateLog(logMark);
+        if (hotTopics != null) {
+            hotTopics.offer(batch);
+        }
+        if (rollups) {
+            unwrittenRollups.add(System.currentTimeMillis(), batch);
+            writeRollups();
+        }
+        return failed.isEmpty();
+    }
+
+    /**
+     * Put deltas the store did not apply back in the buffer for the next flush to retry
+     * @param failed Map<String, Long>
+     * @param relog boolean whether to log them again, because the records they are in are about to be truncated
+     */
+    private void requeue(Map<String, Long> failed, boolean relog) {
+        if (relog) {
+            logLock.readLock().lock();
+            try {
+                for (Map.Entry<String, Long> entry : failed.entrySet()) {
+                    log.append(entry.getKey(), entry.getValue());
+                }
+            } catch (IOException ioe) {
+                // truncated anyway, replaying the applied deltas would count them twice
+                System.err.println("Unable to log " + failed.size() + " deltas again, they are lost if the process "
+                        + "dies before the next flush");
+                ioe.printStackTrace();
+                unloggedDeltas.mark(failed.size());
+            } finally {
+                logLock.readLock().unlock();
+            }
+        }
+        for (Map.Entry<String, Long> entry : failed.entrySet()) {
+            addDelta(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Take all pending deltas out of the buffer
+     * @return Map<String, Long> deltas keyed by topic name
+     */
+    private Map<String, Long> drain() {
+        pending.set(0);
+        Map<String, Long> batch = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : deltas.entrySet()) {
+            AtomicLong cell = entry.getValue();
+            long value;
+            do {
+                value = cell.get();
+            } while (value != RETIRED && !cell.compareAndSet(value, 0));
+
+            if (value > 0) {
+                batch.put(entry.getKey(), value);
+            } else if (value == 0 && cell.compareAndSet(0, RETIRED)) {
+                // idle for a whole interval, stop tracking it so the map does not grow with every topic ever seen
+                deltas.remove(entry.getKey(), cell);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Truncate the log up to provided mark, the deltas before it made it to the store
+     * @param logMark long -1 to not truncate
+     */
+    private void truncateLog(long logMark) {
+        if (logMark >= 0) {
+            log.truncate(logMark);
+        }
+    }
+
+    /**
+     * Write all unwritten rollups in one batch. Buckets the store did not apply are kept for the next flush to
+     * retry. Rollups are secondary to the totals, so failing to write them does not fail the flush.
+     */
+    private void writeRollups() {
+        try {
+            unwrittenRollups = store.incrementRollups(unwrittenRollups);
+        } catch (IOException ioe) {
+            System.err.println("Unable to write " + unwrittenRollups.size() + " rollup buckets, will retry");
+            ioe.printStackTrace();
+        }
+        long dropped = unwrittenRollups.trim(MAX_UNWRITTEN_BUCKETS);
+        if (dropped > 0) {
+            System.err.println("Dropped " + dropped + " unwritten rollup deltas of the oldest buckets");
+            droppedRollups.mark(dropped);
+        }
+    }
+
+    /**
+     * Stop accepting increments, wait for those under way, stop the flusher and write whatever is still pending
+     */
+    void close() {
+        closed = true;
+        while (adding.get() > 0) {
+            Thread.yield();
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        if (log != null) {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.company.product.test.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * class CounterCache
+ * Read-through cache of counter values and counter pages in front of a @see CounterStore, so frequent readers
+ * such as dashboards do not each hit the store. Values are trusted for ttlMillis and at most maxEntries topics
+ * (and as many pages) are kept. Concurrent misses for the same key share a single store read, whether they come
+ * from single or batched gets.
+ * @author shoaibi
+ * @version 0.1
+ */
+class CounterCache {
+
+    /**
+     * Cached value along with the time it stops being trusted
+     */
+    private static final class Entry<T> {
+        final T value;
+        final long expiresAt;
+
+        Entry(T value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Store counters are read from
+     */
+    private final CounterStore store;
+
+    /**
+     * Maximum number of topics kept
+     */
+    private final int maxEntries;
+
+    /**
+     * How long a value is served without going back to the store, in milliseconds
+     */
+    private final long ttlMillis;
+
+    /**
+     * Cached counters keyed by topic name
+     */
+    private final ConcurrentHashMap<String, Entry<Long>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Cached pages keyed by the rows their scan returns, @see CounterScan.rowsKey()
+     */
+    private final ConcurrentHashMap<List<Object>, Entry<CounterPage>> pages = new ConcurrentHashMap<>();
+
+    /**
+     * Reads currently going to the store, keyed by topic name or by the rows key of the scan.
+     * A String never equals a List, so topics and pages can not be mistaken for each other.
+     */
+    private final ConcurrentHashMap<Object, FutureTask<?>> loading = new ConcurrentHashMap<>();
+
+    /**
+     * @param store CounterStore
+     * @param maxEntries int
+     * @param ttlMillis long
+     */
+    CounterCache(CounterStore store, int maxEntries, long ttlMillis) {
+        this.store = store;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Get counter of provided topic name, 0 if it has none yet
+     * @param topicName String
+     * @return long
+     * @throws IOException
+     */
+    long get(final String topicName) throws IOException {
+        Entry<Long> entry = entries.get(topicName);
+        if (entry != null && entry.expiresAt >= System.currentTimeMillis()) {
+            return entry.value;
+        }
+        return load(topicName, new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                long value = store.get(Collections.singletonList(topicName))[0];
+                remember(entries, topicName, value);
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Get counters of provided topic names, 0 for those that have none yet.
+     * Topics missing from the cache that no other thread is reading yet are read from the store with a single
+     * batched read, the others wait for the read already under way.
+     * @param topicNames List<String>
+     * @return long[] counters in the order of topicNames
+     * @throws IOException
+     */
+    long[] get(List<String> topicNames) throws IOException {
+        long[] values = new long[topicNames.size()];
+        long now = System.currentTimeMillis();
+        List<String> misses = new ArrayList<>();
+        List<Integer> missIndexes = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            Entry<Long> entry = entries.get(topicNames.get(i));
+            if (entry != null && entry.expiresAt >= now) {
+                values[i] = entry.value;
+            } else {
+                misses.add(topicNames.get(i));
+                missIndexes.add(i);
+            }
+        }
+        if (misses.isEmpty()) {
+            return values;
+        }
+
+        final List<String> claimed = new ArrayList<>();
+        final FutureTask<long[]> read = new FutureTask<>(new Callable<long[]>() {
+            @Override
+            public long[] call() throws IOException {
+                long[] loaded = store.get(claimed);
+                for (int i = 0; i < loaded.length; i++) {
+                    remember(entries, claimed.get(i), loaded[i]);
+                }
+                return loaded;
+            }
+        });
+        // every miss gets a task of its own in loading, so single gets of the same topic wait for it too
+        List<FutureTask<?>> tasks = new ArrayList<>(misses.size());
+        List<FutureTask<Long>> claimedTasks = new ArrayList<>();
+        for (String topicName : misses) {
+            final int index = claimed.size();
+            FutureTask<Long> task = new FutureTask<>(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    // only the first run reads, the others take their value from it
+                    read.run();
+                    return await(read)[index];
+                }
+            });
+            FutureTask<?> running = loading.putIfAbsent(topicName, task);
+            if (running == null) {
+                claimed.add(topicName);
+                claimedTasks.add(task);
+                running = task;
+            }
+            tasks.add(running);
+        }
+        for (int i = 0; i < claimedTasks.size(); i++) {
+            try {
+                claimedTasks.get(i).run();
+            } finally {
+                loading.remove(claimed.get(i), claimedTasks.get(i));
+            }
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            values[missIndexes.get(i)] = (Long) await(tasks.get(i));
+        }
+        return values;
+    }
+
+    /**
+     * Get the page of counters described by spec
+     * @param spec CounterScan
+     * @return CounterPage
+     * @throws IOException
+     */
+    CounterPage getPage(final CounterScan spec) throws IOException {
+        final List<Object> key = spec.rowsKey();
+        Entry<CounterPage> entry = pages.get(key);
+        if (entry != null && entry.expiresAt >= System.currentTimeMillis()) {
+            return entry.value;
+        }
+        return load(key, new Callable<CounterPage>() {
+            @Override
+            public CounterPage call() throws IOException {
+                final Map<String, Long> counters = new LinkedHashMap<>();
+                String next = store.scan(spec, new CounterVisitor() {
+                    @Override
+                    public boolean visit(String topicName, long count) {
+                        counters.put(topicName, count);
+                        return true;
+                    }
+                });
+                CounterPage page = new CounterPage(Collections.unmodifiableMap(counters), next);
+                remember(pages, key, page);
+                return page;
+            }
+        });
+    }
+
+    /**
+     * Run loader for key, or wait for the loader another thread already started for it
+     * @param key Object
+     * @param loader Callable<T>
+     * @return T
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T load(Object key, Callable<T> loader) throws IOException {
+        FutureTask<T> task = new FutureTask<>(loader);
+        FutureTask<T> running = (FutureTask<T>) loading.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+
+        return await(running);
+    }
+
+    /**
+     * Wait for the result of a store read
+     * @param task Future<T>
+     * @return T
+     * @throws IOException
+     */
+    private static <T> T await(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading counters", ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Unable to read counters", cause);
+        }
+    }
+
+    /**
+     * Store a value, making room first if the cache is full
+     * @param cache ConcurrentHashMap<K, Entry<T>>
+     * @param key K
+     * @param value T
+     */
+    private <K, T> void remember(ConcurrentHashMap<K, Entry<T>> cache, K key, T value) {
+        if (cache.size() >= maxEntries) {
+            evict(cache);
+        }
+        cache.put(key, new Entry<>(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Drop expired entries, and if that was not enough, arbitrary ones until a quarter of the cache is free
+     * @param cache ConcurrentHashMap<K, Entry<T>>
+     */
+    private <K, T> void evict(ConcurrentHashMap<K, Entry<T>> cache) {
+        long now = System.currentTimeMillis();
+        Iterator<Entry<T>> it = cache.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt < now) {
+                it.remove();
+            }
+        }
+        it = cache.values().iterator();
+        while (cache.size() > maxEntries * 3 / 4 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
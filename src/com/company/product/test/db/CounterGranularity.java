@@ -0,0 +1,74 @@
+package com.company.product.test.db;
+
+import org.apache.hadoop.hbase.HConstants;
+
+/**
+ * enum CounterGranularity
+ * Sizes of the time buckets counters are rolled up into. Every granularity is stored in a column family of its
+ * own so each can expire at its own pace, fine grained buckets are only worth keeping for a short while.
+ * Buckets are aligned on UTC.
+ * @author shoaibi
+ * @version 0.1
+ */
+public enum CounterGranularity {
+    MINUTE("m", 60000L, Integer.getInteger("counter.rollup.minute.ttlSeconds", 2 * 24 * 3600)),
+    HOUR("h", 3600000L, Integer.getInteger("counter.rollup.hour.ttlSeconds", 90 * 24 * 3600)),
+    DAY("d", 86400000L, Integer.getInteger("counter.rollup.day.ttlSeconds", HConstants.FOREVER));
+
+    /**
+     * Column family buckets of this granularity are stored in
+     */
+    private final String family;
+
+    /**
+     * Length of a bucket, in milliseconds
+     */
+    private final long millis;
+
+    /**
+     * How long Hbase keeps buckets of this granularity, in seconds
+     */
+    private final int ttlSeconds;
+
+    /**
+     * @param family String
+     * @param millis long
+     * @param ttlSeconds int
+     */
+    CounterGranularity(String family, long millis, int ttlSeconds) {
+        this.family = family;
+        this.millis = millis;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public String getFamily() {
+        return family;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    public int getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /**
+     * Start of the bucket provided time falls in
+     * @param time long epoch milliseconds
+     * @return long epoch milliseconds
+     */
+    public long bucketStart(long time) {
+        return time - time % millis;
+    }
+
+    /**
+     * Granularity called name, case insensitively
+     * @param name String e.g. minute
+     * @return CounterGranularity
+     * @throws IllegalArgumentException if there is none
+     */
+    public static CounterGranularity parse(String name) throws IllegalArgumentException {
+        return valueOf(name.toUpperCase());
+    }
+}
@@ -0,0 +1,39 @@
+package com.company.product.test.db;
+
+import java.util.Map;
+
+/**
+ * class CounterPage
+ * One page of counters returned by a paginated @see CounterScan
+ * @author shoaibi
+ * @version 0.1
+ */
+public class CounterPage {
+
+    /**
+     * Counters of this page in topic order
+     */
+    private final Map<String, Long> counters;
+
+    /**
+     * Cursor of the next page, null if this is the last one
+     */
+    private final String next;
+
+    /**
+     * @param counters Map<String, Long>
+     * @param next String
+     */
+    CounterPage(Map<String, Long> counters, String next) {
+        this.counters = counters;
+        this.next = next;
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public String getNext() {
+        return next;
+    }
+}
@@ -0,0 +1,125 @@
+package com.company.product.test.db;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * class CounterScan
+ * Describes which part of the counter table to stream through and how.
+ * Topics are returned in row key order, optionally restricted to a prefix and/or a [startRow, stopRow) range,
+ * starting right after cursor and stopping after limit topics, in which case the last topic returned is the
+ * cursor of the next page. Setters return this so a scan can be described in one statement, like Hbase's Scan.
+ * @author shoaibi
+ * @version 0.1
+ */
+public class CounterScan {
+
+    /**
+     * Only topics starting with this, null for all
+     */
+    private String prefix = null;
+
+    /**
+     * First topic (inclusive) and last topic (exclusive) of the range, null for unbounded
+     */
+    private String startRow = null;
+    private String stopRow = null;
+
+    /**
+     * Last topic of the previous page, the scan starts right after it. null to start at the beginning.
+     */
+    private String cursor = null;
+
+    /**
+     * Maximum number of topics returned, 0 for no limit
+     */
+    private int limit = 0;
+
+    /**
+     * Rows fetched from the region server per rpc
+     */
+    private int caching = 1000;
+
+    /**
+     * Maximum number of columns per Result, -1 for all
+     */
+    private int batch = -1;
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public CounterScan setPrefix(String prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+
+    public String getStartRow() {
+        return startRow;
+    }
+
+    public CounterScan setStartRow(String startRow) {
+        this.startRow = startRow;
+        return this;
+    }
+
+    public String getStopRow() {
+        return stopRow;
+    }
+
+    public CounterScan setStopRow(String stopRow) {
+        this.stopRow = stopRow;
+        return this;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public CounterScan setCursor(String cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public CounterScan setLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public int getCaching() {
+        return caching;
+    }
+
+    public CounterScan setCaching(int caching) {
+        this.caching = caching;
+        return this;
+    }
+
+    public int getBatch() {
+        return batch;
+    }
+
+    public CounterScan setBatch(int batch) {
+        this.batch = batch;
+        return this;
+    }
+
+    /**
+     * Identifies the rows this scan returns, used as cache key of its page. Every field is compared as it is, so
+     * no scan is mistaken for another, e.g. one without a prefix for one with the prefix "null".
+     * @return List<Object>
+     */
+    public List<Object> rowsKey() {
+        return Arrays.<Object>asList(prefix, startRow, stopRow, cursor, limit);
+    }
+
+    @Override
+    public String toString() {
+        return "prefix=" + prefix + ",start=" + startRow + ",stop=" + stopRow + ",cursor=" + cursor
+                + ",limit=" + limit;
+    }
+}
@@ -0,0 +1,99 @@
+package com.company.product.test.db;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * class CounterShards
+ * Row key layout of the sharded counter table. Every topic is spread over a number of sub-rows whose keys are
+ * the topic name salted with a fixed width shard prefix ("00topic", "01topic", ...), so increments of a hot topic
+ * land on different rows, and with the table pre-split on the salts, on different regions.
+ * Every write picks a shard at random, so the flushes of a hot topic (all made by one flusher thread per process)
+ * and those of several processes spread over all shards. Readers sum all of them.
+ * @author shoaibi
+ * @version 0.1
+ */
+class CounterShards {
+
+    /**
+     * Most shards a topic may be spread over, the salt is two hex digits
+     */
+    static final int MAX_SHARDS = 256;
+
+    /**
+     * Length of the salt prefixed to topic names
+     */
+    static final int SALT_LENGTH = 2;
+
+    /**
+     * Number of shards per topic
+     */
+    private final int shards;
+
+    /**
+     * @param shards int
+     * @throws IllegalArgumentException
+     */
+    CounterShards(int shards) throws IllegalArgumentException {
+        if (shards < 1 || shards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard count must be between 1 and " + MAX_SHARDS + ": " + shards);
+        }
+        this.shards = shards;
+    }
+
+    /**
+     * Number of shards per topic
+     * @return int
+     */
+    int count() {
+        return shards;
+    }
+
+    /**
+     * Salt of provided shard
+     * @param shard int
+     * @return String
+     */
+    static String salt(int shard) {
+        return String.format("%02x", shard);
+    }
+
+    /**
+     * Row key of provided topic name in provided shard
+     * @param shard int
+     * @param topicName String
+     * @return String
+     */
+    static String rowKey(int shard, String topicName) {
+        return salt(shard) + topicName;
+    }
+
+    /**
+     * Row key of a randomly picked shard of provided topic name, to write its next increment to
+     * @param topicName String
+     * @return String
+     */
+    String writerRowKey(String topicName) {
+        return rowKey(ThreadLocalRandom.current().nextInt(shards), topicName);
+    }
+
+    /**
+     * Topic name a salted row key belongs to
+     * @param row byte[]
+     * @return String
+     */
+    static String topicName(byte[] row) {
+        return new String(row, SALT_LENGTH, row.length - SALT_LENGTH);
+    }
+
+    /**
+     * Keys to pre-split the table on so every shard starts out in a region of its own
+     * @return byte[][]
+     */
+    byte[][] splitKeys() {
+        byte[][] splitKeys = new byte[shards - 1][];
+        for (int shard = 1; shard < shards; shard++) {
+            splitKeys[shard - 1] = salt(shard).getBytes();
+        }
+        return splitKeys;
+    }
+}
@@ -0,0 +1,91 @@
+package com.company.product.test.db;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * interface CounterStore
+ * Where @see TopicCounter keeps its counters. Picked at startup with -Dcounter.store:
+ * hbase (default) @see HbaseCounterStore, or memory @see MemoryCounterStore for a single node without any
+ * outside services.
+ * @author shoaibi
+ * @version 0.1
+ */
+public interface CounterStore {
+
+    /**
+     * Make sure the store is ready to be used, e.g. that its tables exist
+     * @param rollups boolean whether time bucketed rollups will be written too
+     * @throws IOException
+     */
+    void open(boolean rollups) throws IOException;
+
+    /**
+     * Load what the first reads and writes would otherwise wait for, e.g. where regions live. Called once open()
+     * succeeded, failing only makes the first requests slower.
+     * @param rollups boolean whether time bucketed rollups will be written too
+     * @throws IOException
+     */
+    void warmUp(boolean rollups) throws IOException;
+
+    /**
+     * Provided a map of topic names and deltas, increment all of their counters in one batch.
+     * A batch is not applied all or nothing, so what failed is handed back for the caller to retry on its own,
+     * retrying the whole batch would count the others twice.
+     * @param topicDeltas Map<String, Long>
+     * @return Map<String, Long> topic deltas that were not applied, empty if all were
+     * @throws IOException if none of them could be applied
+     */
+    Map<String, Long> increment(Map<String, Long> topicDeltas) throws IOException;
+
+    /**
+     * Provided topic names get their counters in one batch, 0 for those that have none yet
+     * @param topicNames List<String>
+     * @return long[] counters in the order of topicNames
+     * @throws IOException
+     */
+    long[] get(List<String> topicNames) throws IOException;
+
+    /**
+     * Stream counters described by spec through visitor in topic order
+     * @param spec CounterScan
+     * @param visitor CounterVisitor
+     * @return String cursor of the next page if spec's limit was reached, null otherwise
+     * @throws IOException
+     */
+    String scan(CounterScan spec, CounterVisitor visitor) throws IOException;
+
+    /**
+     * Provided deltas of topic names per bucket, increment all of those buckets in one batch.
+     * Like increment(), what failed is handed back for the caller to retry on its own.
+     * @param deltas RollupDeltas
+     * @return RollupDeltas buckets that were not applied, empty if all were
+     * @throws IOException if none of them could be applied
+     */
+    RollupDeltas incrementRollups(RollupDeltas deltas) throws IOException;
+
+    /**
+     * Provided a topic name, get its buckets of provided granularity overlapping [from, to)
+     * @param topicName String
+     * @param granularity CounterGranularity
+     * @param from long epoch milliseconds, inclusive
+     * @param to long epoch milliseconds, exclusive
+     * @return SortedMap<Long, Long> counts keyed by bucket start, buckets without messages are left out
+     * @throws IOException
+     */
+    SortedMap<Long, Long> getRollups(String topicName, CounterGranularity granularity, long from, long to)
+            throws IOException;
+
+    /**
+     * Clean the slate
+     * @param rollups boolean whether to drop the rollups too
+     */
+    void reset(boolean rollups);
+
+    /**
+     * Release whatever the store holds on to
+     */
+    void close();
+}
@@ -0,0 +1,17 @@
+package com.company.product.test.db;
+
+/**
+ * interface CounterVisitor
+ * Receives counters one at a time while a @see CounterScan streams through the counter table
+ * @author shoaibi
+ * @version 0.1
+ */
+public interface CounterVisitor {
+    /**
+     * Called for every counter in row key order
+     * @param topicName String
+     * @param count long
+     * @return boolean false to stop the scan early
+     */
+    boolean visit(String topicName, long count);
+}
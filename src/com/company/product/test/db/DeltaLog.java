@@ -0,0 +1,433 @@
+package com.company.product.test.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * class DeltaLog
+ * Memory-mapped write-ahead log of the deltas buffered by @see CounterAggregator, replayed on startup so a crash
+ * does not lose increments that were accepted but not flushed yet.
+ * @author shoaibi
+ * @version 0.1
+ */
+class DeltaLog {
+
+    /**
+     * Prefix and suffix of segment file names, the sequence number goes in between
+     */
+    private static final String SEGMENT_PREFIX = "deltas-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * File name of the spare segment, never replayed
+     */
+    private static final String SPARE_NAME = SEGMENT_PREFIX + "spare" + SEGMENT_SUFFIX;
+
+    /**
+     * File name of the mark of the last commit()
+     */
+    private static final String COMMITTED_NAME = "committed.mark";
+
+    /**
+     * Bytes at the start of every segment, holding the offset its records were flushed up to
+     */
+    private static final int HEADER_BYTES = 8;
+
+    /**
+     * Bytes of a record besides the chars of its topic name: length, delta and check
+     */
+    private static final int RECORD_BYTES = 4 + 8 + 4;
+
+    /**
+     * A memory-mapped segment file and how much of it has been handed out
+     */
+    private static final class Segment {
+        final long sequence;
+        final MappedByteBuffer buffer;
+        final AtomicInteger position;
+
+        Segment(long sequence, MappedByteBuffer buffer, int position) {
+            this.sequence = sequence;
+            this.buffer = buffer;
+            this.position = new AtomicInteger(position);
+        }
+    }
+
+    /**
+     * Directory segments are kept in
+     */
+    private final File dir;
+
+    /**
+     * Size of every segment, in bytes
+     */
+    private final int segmentBytes;
+
+    /**
+     * Segment records are appended to
+     */
+    private volatile Segment active;
+
+    /**
+     * Segments before the active one that are not truncated yet, oldest first, including those left by a
+     * previous run. Guarded by this.
+     */
+    private final List<Segment> sealed = new ArrayList<>();
+
+    /**
+     * Zeroed segment the log rolls over to next, null if there is none. Guarded by this.
+     */
+    private MappedByteBuffer spare = null;
+
+    /**
+     * Forces segments to disk every forceIntervalMillis, null if left to the os
+     */
+    private ScheduledExecutorService forcer = null;
+
+    /**
+     * Mark of the last commit(), replay stops there. Null if replay covers everything that was not flushed.
+     */
+    private final MappedByteBuffer committed;
+
+    /**
+     * Open the log, creating dir if needed. Existing segments are left alone for @see replay().
+     * @param dir File
+     * @param segmentBytes int
+     * @param forceIntervalMillis long 0 to leave writing back to the os
+     * @param commits boolean whether replay stops at the last @see commit(), for sources that deliver whatever
+     *                was not acknowledged again
+     * @throws IOException
+     */
+    DeltaLog(File dir, int segmentBytes, long forceIntervalMillis, boolean commits) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create delta log directory " + dir);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        // may have been cut short while being zeroed, cheaper to map a new one than to check
+        File spareFile = new File(dir, SPARE_NAME);
+        if (spareFile.exists() && !spareFile.delete()) {
+            throw new IOException("Unable to delete delta log spare segment " + spareFile);
+        }
+        long next = 0;
+        for (long sequence : segments()) {
+            Segment segment = map(sequence, false);
+            // left by a previous run, nothing is appended to it anymore
+            segment.position.set(segment.buffer.capacity());
+            sealed.add(segment);
+            next = sequence + 1;
+        }
+        committed = commits ? mapCommitted(next) : null;
+        active = map(next, true);
+        if (forceIntervalMillis > 0) {
+            forcer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "delta-log-force");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            forcer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    active.buffer.force();
+                }
+            }, forceIntervalMillis, forceIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Append a delta of provided topic name. Safe to call from many threads at once.
+     * @param topicName String
+     * @param delta long
+     * @throws IOException if a new segment was needed and could not be created
+     * @throws IllegalArgumentException if the record does not fit in a segment
+     */
+    void append(String topicName, long delta) throws IOException, IllegalArgumentException {
+        int length = topicName.length();
+        int size = RECORD_BYTES + 2 * length;
+        if (size > segmentBytes - HEADER_BYTES) {
+            throw new IllegalArgumentException("Topic name too long for the delta log: " + length);
+        }
+        while (true) {
+            Segment segment = active;
+            int position = segment.position.getAndAdd(size);
+            if (position > segmentBytes - size) {
+                // does not fit, whatever is left of this segment stays zeroed and is skipped by replay
+                roll(segment);
+                continue;
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            buffer.putInt(position, length);
+            int offset = position + 4;
+            for (int i = 0; i < length; i++, offset += 2) {
+                buffer.putChar(offset, topicName.charAt(i));
+            }
+            buffer.putLong(offset, delta);
+            buffer.putInt(offset + 8, check(topicName, delta));
+            return;
+        }
+    }
+
+    /**
+     * Where the log is at, to @see truncate() it once everything appended so far is flushed.
+     * Must not race with append().
+     * @return long
+     */
+    synchronized long mark() {
+        return active.sequence << 32 | Math.min(active.position.get(), segmentBytes);
+    }
+
+    /**
+     * Make every record appended before provided mark durable and have replay cover them, and only them
+     * @param mark long as returned by mark()
+     * @return long mark of the previous commit, to commit again to roll this one back
+     * @throws IllegalStateException if the log was not opened for commits
+     */
+    synchronized long commit(long mark) throws IllegalStateException {
+        if (committed == null) {
+            throw new IllegalStateException("Delta log was not opened for commits");
+        }
+        for (Segment segment : sealed) {
+            segment.buffer.force();
+        }
+        active.buffer.force();
+        long previous = committed.getLong(0);
+        committed.putLong(0, mark);
+        committed.force();
+        return previous;
+    }
+
+    /**
+     * Drop every record appended before provided mark. The segments before the one it falls in are recycled or
+     * deleted, and that one skips the records before the mark on replay.
+     * @param mark long as returned by mark()
+     */
+    synchronized void truncate(long mark) {
+        long sequence = mark >>> 32;
+        int flushed = (int) mark;
+        Iterator<Segment> segments = sealed.iterator();
+        while (segments.hasNext()) {
+            Segment segment = segments.next();
+            if (segment.sequence < sequence) {
+                segments.remove();
+                recycle(segment);
+            } else if (segment.sequence == sequence) {
+                segment.buffer.putLong(0, flushed);
+                if (forcer != null) {
+                    // filled up since the mark, the forcer only covers the active segment
+                    segment.buffer.force();
+                }
+            }
+        }
+        if (active.sequence == sequence) {
+            active.buffer.putLong(0, flushed);
+        }
+    }
+
+    /**
+     * Sum the deltas past the flushed offset of every segment before the active one, i.e. everything left
+     * behind by a previous run, up to the last commit if the log was opened for commits
+     * @return Map<String, Long> deltas keyed by topic name
+     */
+    synchronized Map<String, Long> replay() {
+        Map<String, Long> deltas = new HashMap<>();
+        long last = committed == null ? -1 : committed.getLong(0);
+        for (Segment segment : sealed) {
+            MappedByteBuffer buffer = segment.buffer;
+            int limit = buffer.capacity();
+            if (last >= 0) {
+                if (segment.sequence > last >>> 32) {
+                    break;
+                }
+                if (segment.sequence == last >>> 32) {
+                    limit = Math.min(limit, (int) last);
+                }
+            }
+            if (limit < HEADER_BYTES) {
+                continue;
+            }
+            int position = (int) Math.min(Math.max(buffer.getLong(0), HEADER_BYTES), limit);
+            while (position <= limit - RECORD_BYTES) {
+                int length = buffer.getInt(position);
+                if (length > 0 && length <= (limit - position - RECORD_BYTES) / 2) {
+                    char[] chars = new char[length];
+                    for (int i = 0; i < length; i++) {
+                        chars[i] = buffer.getChar(position + 4 + 2 * i);
+                    }
+                    String topicName = new String(chars);
+                    long delta = buffer.getLong(position + 4 + 2 * length);
+                    if (buffer.getInt(position + 12 + 2 * length) == check(topicName, delta)) {
+                        Long sum = deltas.get(topicName);
+                        deltas.put(topicName, sum == null ? delta : sum + delta);
+                        position += RECORD_BYTES + 2 * length;
+                        continue;
+                    }
+                }
+                // not a whole record: the zeroed end of the segment, or a record cut short while other threads
+                // went on appending after it. Records are all an even number of bytes, so look for the next one.
+                position += 2;
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * Stop forcing segments to disk, and force the active one a last time
+     */
+    void close() {
+        if (forcer != null) {
+            forcer.shutdown();
+        }
+        active.buffer.force();
+    }
+
+    /**
+     * Check of a record, written last so a record cut short by a crash does not match it. Never 0, which is what
+     * a check that was not written yet reads as.
+     * @param topicName String
+     * @param delta long
+     * @return int
+     */
+    private static int check(String topicName, long delta) {
+        int check = 31 * topicName.hashCode() + (int) (delta ^ (delta >>> 32));
+        return check == 0 ? 1 : check;
+    }
+
+    /**
+     * Replace segment with the spare or a fresh one, unless another thread already did
+     * @param segment Segment
+     * @throws IOException
+     */
+    private synchronized void roll(Segment segment) throws IOException {
+        if (active != segment) {
+            return;
+        }
+        Segment next = null;
+        if (spare != null) {
+            if (new File(dir, SPARE_NAME).renameTo(segmentFile(segment.sequence + 1))) {
+                next = new Segment(segment.sequence + 1, spare, HEADER_BYTES);
+            } else {
+                System.err.println("Unable to reuse delta log spare segment");
+            }
+            spare = null;
+        }
+        if (next == null) {
+            next = map(segment.sequence + 1, true);
+        }
+        if (forcer != null) {
+            segment.buffer.force();
+        }
+        sealed.add(segment);
+        active = next;
+    }
+
+    /**
+     * Keep a truncated segment as the spare if there is none yet, delete it otherwise
+     * @param segment Segment
+     */
+    private void recycle(Segment segment) {
+        File file = segmentFile(segment.sequence);
+        if (spare == null && segment.buffer.capacity() == segmentBytes && file.renameTo(new File(dir, SPARE_NAME))) {
+            // renamed before zeroing, so a crash meanwhile does not leave flushed records where replay looks
+            MappedByteBuffer buffer = segment.buffer;
+            int written = Math.min(segment.position.get(), segmentBytes);
+            int i = 0;
+            for (; i <= written - 8; i += 8) {
+                buffer.putLong(i, 0);
+            }
+            for (; i < written; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            spare = buffer;
+        } else if (!file.delete()) {
+            System.err.println("Unable to delete delta log segment " + file);
+        }
+    }
+
+    /**
+     * Map the file of the mark of the last commit. A new one commits the segments left by a previous run, which
+     * did not commit, and with no segments left there is nothing to replay either way.
+     * @param next long sequence of the segment about to be created
+     * @return MappedByteBuffer
+     * @throws IOException
+     */
+    private MappedByteBuffer mapCommitted(long next) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, COMMITTED_NAME), "rw")) {
+            boolean created = file.length() < 8;
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+            if (next == 0) {
+                buffer.putLong(0, 0);
+            } else if (created) {
+                buffer.putLong(0, (next - 1) << 32 | Integer.MAX_VALUE);
+            }
+            buffer.force();
+            return buffer;
+        }
+    }
+
+    /**
+     * Map a segment file
+     * @param sequence long
+     * @param create boolean whether to create a zeroed file of segmentBytes, rather than map an existing one
+     * @return Segment
+     * @throws IOException
+     */
+    private Segment map(long sequence, boolean create) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(sequence), "rw")) {
+            if (create) {
+                file.setLength(segmentBytes);
+            }
+            // the mapping stays valid once the file is closed
+            return new Segment(sequence, file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length()),
+                    HEADER_BYTES);
+        }
+    }
+
+    /**
+     * Sequence numbers of the segments in dir, in order
+     * @return List<Long>
+     */
+    private List<Long> segments() {
+        List<Long> sequences = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        sequences.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException nfe) {
+                        // not ours
+                    }
+                }
+            }
+        }
+        Collections.sort(sequences);
+        return sequences;
+    }
+
+    /**
+     * File of the segment with provided sequence
+     * @param sequence long
+     * @return File
+     */
+    private File segmentFile(long sequence) {
+        return new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+}
@@ -0,0 +1,68 @@
+package com.company.product.test.db;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * class HbaseCounterStore
+ * Keeps counters in Hbase through @see TableManager. TableManager connects to Hbase when it is first used,
+ * so nothing happens until open() is called.
+ * @author shoaibi
+ * @version 0.1
+ */
+class HbaseCounterStore implements CounterStore {
+
+    @Override
+    public void open(boolean rollups) throws IOException {
+        TableManager.createTopicCounterTable();
+        if (rollups) {
+            TableManager.createRollupTable();
+        }
+    }
+
+    @Override
+    public void warmUp(boolean rollups) throws IOException {
+        TableManager.warmUp(rollups);
+    }
+
+    @Override
+    public Map<String, Long> increment(Map<String, Long> topicDeltas) throws IOException {
+        return TableManager.incrementTopicCounters(topicDeltas);
+    }
+
+    @Override
+    public long[] get(List<String> topicNames) throws IOException {
+        return TableManager.getTopicCounters(topicNames);
+    }
+
+    @Override
+    public String scan(CounterScan spec, CounterVisitor visitor) throws IOException {
+        return TableManager.scanTopicCounters(spec, visitor);
+    }
+
+    @Override
+    public RollupDeltas incrementRollups(RollupDeltas deltas) throws IOException {
+        return TableManager.incrementRollups(deltas);
+    }
+
+    @Override
+    public SortedMap<Long, Long> getRollups(String topicName, CounterGranularity granularity, long from, long to)
+            throws IOException {
+        return TableManager.getRollups(topicName, granularity, from, to);
+    }
+
+    @Override
+    public void reset(boolean rollups) {
+        TableManager.resetCounters();
+        if (rollups) {
+            TableManager.resetRollups();
+        }
+    }
+
+    @Override
+    public void close() {
+        TableManager.close();
+    }
+}
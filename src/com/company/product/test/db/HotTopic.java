@@ -0,0 +1,76 @@
+package com.company.product.test.db;
+
+/**
+ * class HotTopic
+ * One of the most counted topics, as estimated by @see HotTopics
+ * @author shoaibi
+ * @version 0.1
+ */
+public class HotTopic {
+
+    private final String topicName;
+
+    /**
+     * Estimated count, over by at most error
+     */
+    private final long count;
+
+    private final long error;
+
+    /**
+     * Count read back from the store, null if it was not asked for or is not available
+     */
+    private final Long exact;
+
+    /**
+     * @param topicName String
+     * @param count long
+     * @param error long
+     */
+    HotTopic(String topicName, long count, long error) {
+        this(topicName, count, error, null);
+    }
+
+    /**
+     * @param topicName String
+     * @param count long
+     * @param error long
+     * @param exact Long
+     */
+    HotTopic(String topicName, long count, long error, Long exact) {
+        this.topicName = topicName;
+        this.count = count;
+        this.error = error;
+        this.exact = exact;
+    }
+
+    public String getTopicName() {
+        return topicName;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getError() {
+        return error;
+    }
+
+    public Long getExact() {
+        return exact;
+    }
+
+    @Override
+    public String toString() {
+        return topicName + "=" + count + " (error " + error + (exact == null ? "" : ", exact " + exact) + ")";
+    }
+
+    /**
+     * Copy of this topic along with its count read back from the store
+     * @param exact long
+     * @return HotTopic
+     */
+    HotTopic withExact(long exact) {
+        return new HotTopic(topicName, count, error, exact);
+    }
+}
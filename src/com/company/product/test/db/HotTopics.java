@@ -0,0 +1,162 @@
+package com.company.product.test.db;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class HotTopics
+ * Tracks the most counted topics as @see CounterAggregator flushes them, in memory bounded by the number of
+ * topics tracked and not by the number of topics seen.
+ * Every flush offers its deltas, already summed per topic, to the sketch of the current minute, so counting a
+ * message costs nothing more and the sketch has a single writer. At every minute the sketch is kept for the last
+ * windowMinutes minutes and merged into a sketch of everything seen since start. Reads merge the sketches the
+ * asked window is made of, with the merge of the finished minutes of a window cached until the next minute, so
+ * reading costs the same however many topics there are.
+ * Lags behind the counts by up to a flush, and only counts what this jvm flushed since it started.
+ * @author shoaibi
+ * @version 0.1
+ */
+class HotTopics {
+
+    /**
+     * Most topics every sketch tracks
+     */
+    private final int capacity;
+
+    /**
+     * Number of minutes sketches are kept for
+     */
+    private final int windowMinutes;
+
+    /**
+     * Sketch of the current minute. Guarded by this.
+     */
+    private SpaceSaving current;
+
+    /**
+     * Sketches of the last finished minutes, oldest first. Guarded by this.
+     */
+    private final ArrayDeque<SpaceSaving> minutes = new ArrayDeque<>();
+
+    /**
+     * Sketch of every finished minute since start. Guarded by this.
+     */
+    private SpaceSaving overall;
+
+    /**
+     * Merged sketches of the last finished minutes, keyed by their number, until the next minute. Guarded by this.
+     */
+    private final Map<Integer, SpaceSaving> windows = new HashMap<>();
+
+    /**
+     * Rolls minutes over
+     */
+    private final ScheduledExecutorService ticker;
+
+    /**
+     * Start rolling minutes over
+     * @param capacity int most topics tracked per sketch, topics seen more than 1 / capacity of the time are
+     *                 always tracked
+     * @param windowMinutes int most minutes a window may span
+     */
+    HotTopics(int capacity, int windowMinutes) {
+        this.capacity = capacity;
+        this.windowMinutes = windowMinutes;
+        this.current = new SpaceSaving(capacity);
+        this.overall = new SpaceSaving(capacity);
+        this.ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "hot-topics-ticker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long minute = CounterGranularity.MINUTE.getMillis();
+        long now = System.currentTimeMillis();
+        ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                rollover();
+            }
+        }, CounterGranularity.MINUTE.bucketStart(now) + minute - now, minute, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Count the flushed deltas of topics
+     * @param topicDeltas Map<String, Long>
+     */
+    synchronized void offer(Map<String, Long> topicDeltas) {
+        for (Map.Entry<String, Long> topicDelta : topicDeltas.entrySet()) {
+            current.offer(topicDelta.getKey(), topicDelta.getValue());
+        }
+    }
+
+    /**
+     * Most counted topics of the current minute and the minutes - 1 before it, or since start
+     * @param limit int
+     * @param minutes int 0 for since start
+     * @return List<HotTopic> most counted first
+     * @throws IllegalArgumentException if minutes is negative or more than windowMinutes
+     */
+    synchronized List<HotTopic> top(int limit, int minutes) throws IllegalArgumentException {
+        if (minutes < 0 || minutes > windowMinutes) {
+            throw new IllegalArgumentException("Window must be 1 to " + windowMinutes + " minutes, or 0: " + minutes);
+        }
+        List<SpaceSaving> sketches = new ArrayList<>(2);
+        sketches.add(current);
+        sketches.add(minutes == 0 ? overall : finished(minutes - 1));
+        return SpaceSaving.merge(sketches, capacity).top(limit);
+    }
+
+    /**
+     * Stop rolling minutes over
+     */
+    void close() {
+        ticker.shutdown();
+    }
+
+    /**
+     * Close the current minute: keep its sketch and merge it into the overall sketch
+     */
+    private synchronized void rollover() {
+        SpaceSaving minute = current;
+        current = new SpaceSaving(capacity);
+        minutes.addLast(minute);
+        while (minutes.size() > windowMinutes) {
+            minutes.removeFirst();
+        }
+        List<SpaceSaving> both = new ArrayList<>(2);
+        both.add(overall);
+        both.add(minute);
+        overall = SpaceSaving.merge(both, capacity);
+        windows.clear();
+    }
+
+    /**
+     * Merged sketch of the last count finished minutes
+     * @param count int
+     * @return SpaceSaving
+     */
+    private SpaceSaving finished(int count) {
+        SpaceSaving window = windows.get(count);
+        if (window == null) {
+            List<SpaceSaving> last = new ArrayList<>(count);
+            Iterator<SpaceSaving> newestFirst = minutes.descendingIterator();
+            for (int i = 0; i < count && newestFirst.hasNext(); i++) {
+                last.add(newestFirst.next());
+            }
+            window = SpaceSaving.merge(last, capacity);
+            windows.put(count, window);
+        }
+        return window;
+    }
+}
@@ -0,0 +1,23 @@
+package com.company.product.test.db;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * interface HotTopicsMXBean
+ * Lists the most counted topics over JMX, for processes without /topics/hot such as MessageConsumer
+ * @author shoaibi
+ * @version 0.1
+ */
+public interface HotTopicsMXBean {
+
+    /**
+     * Most counted topics as "topic=count (error e, exact x)", @see TopicCounter.getHotTopics()
+     * @param limit int
+     * @param minutes int 0 for since start
+     * @param exact boolean
+     * @return List<String> most counted first
+     * @throws IOException
+     */
+    List<String> top(int limit, int minutes, boolean exact) throws IOException;
+}
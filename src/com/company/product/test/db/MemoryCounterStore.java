@@ -0,0 +1,208 @@
+package com.company.product.test.db;
+
+import org.apache.hadoop.hbase.HConstants;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * class MemoryCounterStore
+ * Keeps counters in this jvm only, for a fast single node mode and for benchmarking without outside services.
+ * Counters are AtomicLong cells in a ConcurrentSkipListMap, so increments are lock-free CAS on a primitive
+ * and scans walk topics in order, just like rows of the Hbase table. Nothing survives a restart.
+ * @author shoaibi
+ * @version 0.1
+ */
+class MemoryCounterStore implements CounterStore {
+
+    /**
+     * Counters keyed by topic name
+     */
+    private final ConcurrentSkipListMap<String, AtomicLong> counters = new ConcurrentSkipListMap<>();
+
+    /**
+     * Rollup buckets per granularity, keyed by topic name and then bucket start
+     */
+    private final Map<CounterGranularity, ConcurrentMap<String, ConcurrentSkipListMap<Long, AtomicLong>>> rollups;
+
+    /**
+     * Start of the minute expired buckets were last dropped in
+     */
+    private volatile long lastExpiry = 0;
+
+    MemoryCounterStore() {
+        rollups = new ConcurrentHashMap<>();
+        for (CounterGranularity granularity : CounterGranularity.values()) {
+            rollups.put(granularity, new ConcurrentHashMap<String, ConcurrentSkipListMap<Long, AtomicLong>>());
+        }
+    }
+
+    @Override
+    public void open(boolean rollups) {
+        // nothing to create
+    }
+
+    @Override
+    public void warmUp(boolean rollups) {
+        // nothing to load
+    }
+
+    @Override
+    public Map<String, Long> increment(Map<String, Long> topicDeltas) {
+        for (Map.Entry<String, Long> topicDelta : topicDeltas.entrySet()) {
+            cell(counters, topicDelta.getKey()).addAndGet(topicDelta.getValue());
+        }
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public long[] get(List<String> topicNames) {
+        long[] values = new long[topicNames.size()];
+        for (int i = 0; i < values.length; i++) {
+            AtomicLong cell = counters.get(topicNames.get(i));
+            values[i] = cell == null ? 0 : cell.get();
+        }
+        return values;
+    }
+
+    @Override
+    public String scan(CounterScan spec, CounterVisitor visitor) {
+        String prefix = spec.getPrefix() == null || spec.getPrefix().isEmpty() ? null : spec.getPrefix();
+        String from = "";
+        boolean inclusive = true;
+        if (prefix != null) {
+            from = prefix;
+        }
+        if (spec.getStartRow() != null && spec.getStartRow().compareTo(from) > 0) {
+            from = spec.getStartRow();
+        }
+        if (spec.getCursor() != null && spec.getCursor().compareTo(from) >= 0) {
+            from = spec.getCursor();
+            inclusive = false;
+        }
+
+        int visited = 0;
+        for (Map.Entry<String, AtomicLong> counter : counters.tailMap(from, inclusive).entrySet()) {
+            String topicName = counter.getKey();
+            if ((prefix != null && !topicName.startsWith(prefix))
+                    || (spec.getStopRow() != null && topicName.compareTo(spec.getStopRow()) >= 0)) {
+                break;
+            }
+            if (!visitor.visit(topicName, counter.getValue().get())) {
+                return null;
+            }
+            if (spec.getLimit() > 0 && ++visited >= spec.getLimit()) {
+                return topicName;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public RollupDeltas incrementRollups(RollupDeltas deltas) {
+        for (CounterGranularity granularity : CounterGranularity.values()) {
+            for (Map.Entry<Long, Map<String, Long>> bucket : deltas.get(granularity).entrySet()) {
+                for (Map.Entry<String, Long> topicDelta : bucket.getValue().entrySet()) {
+                    cell(buckets(granularity, topicDelta.getKey()), bucket.getKey()).addAndGet(topicDelta.getValue());
+                }
+            }
+        }
+        expireRollups(System.currentTimeMillis());
+        return new RollupDeltas();
+    }
+
+    @Override
+    public SortedMap<Long, Long> getRollups(String topicName, CounterGranularity granularity, long from, long to) {
+        SortedMap<Long, Long> result = new TreeMap<>();
+        ConcurrentSkipListMap<Long, AtomicLong> buckets = rollups.get(granularity).get(topicName);
+        long firstBucket = granularity.bucketStart(from);
+        if (buckets == null || to <= firstBucket) {
+            return result;
+        }
+        for (Map.Entry<Long, AtomicLong> bucket : buckets.subMap(firstBucket, to).entrySet()) {
+            result.put(bucket.getKey(), bucket.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public void reset(boolean rollups) {
+        counters.clear();
+        if (rollups) {
+            for (ConcurrentMap<String, ConcurrentSkipListMap<Long, AtomicLong>> topics : this.rollups.values()) {
+                topics.clear();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+    /**
+     * Drop buckets past the ttl of their granularity, at most once a minute
+     * @param now long
+     */
+    private void expireRollups(long now) {
+        long minute = CounterGranularity.MINUTE.bucketStart(now);
+        if (minute == lastExpiry) {
+            return;
+        }
+        lastExpiry = minute;
+        for (CounterGranularity granularity : CounterGranularity.values()) {
+            if (granularity.getTtlSeconds() == HConstants.FOREVER) {
+                continue;
+            }
+            long oldest = now - granularity.getTtlSeconds() * 1000L;
+            for (ConcurrentSkipListMap<Long, AtomicLong> buckets : rollups.get(granularity).values()) {
+                buckets.headMap(oldest).clear();
+            }
+        }
+    }
+
+    /**
+     * Buckets of provided granularity and topic name, created if missing
+     * @param granularity CounterGranularity
+     * @param topicName String
+     * @return ConcurrentSkipListMap<Long, AtomicLong>
+     */
+    private ConcurrentSkipListMap<Long, AtomicLong> buckets(CounterGranularity granularity, String topicName) {
+        ConcurrentMap<String, ConcurrentSkipListMap<Long, AtomicLong>> topics = rollups.get(granularity);
+        ConcurrentSkipListMap<Long, AtomicLong> buckets = topics.get(topicName);
+        if (buckets == null) {
+            ConcurrentSkipListMap<Long, AtomicLong> fresh = new ConcurrentSkipListMap<>();
+            buckets = topics.putIfAbsent(topicName, fresh);
+            if (buckets == null) {
+                buckets = fresh;
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Cell of provided key, created at 0 if missing
+     * @param cells ConcurrentNavigableMap<K, AtomicLong>
+     * @param key K
+     * @return AtomicLong
+     */
+    private static <K> AtomicLong cell(ConcurrentNavigableMap<K, AtomicLong> cells, K key) {
+        AtomicLong cell = cells.get(key);
+        if (cell == null) {
+            AtomicLong fresh = new AtomicLong();
+            cell = cells.putIfAbsent(key, fresh);
+            if (cell == null) {
+                cell = fresh;
+            }
+        }
+        return cell;
+    }
+}
@@ -0,0 +1,106 @@
+package com.company.product.test.db;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * class RollupDeltas
+ * Deltas of topics per time bucket of every @see CounterGranularity, summed up so every bucket of a topic is
+ * written once. Buckets of every granularity are kept apart, so a write that applied the minute of a topic but
+ * not its hour can hand back just the hour to retry.
+ * Not thread safe.
+ * @author shoaibi
+ * @version 0.1
+ */
+public class RollupDeltas {
+
+    /**
+     * Topic deltas keyed by granularity and then by bucket start
+     */
+    private final Map<CounterGranularity, TreeMap<Long, Map<String, Long>>> buckets =
+            new EnumMap<>(CounterGranularity.class);
+
+    public RollupDeltas() {
+        for (CounterGranularity granularity : CounterGranularity.values()) {
+            buckets.put(granularity, new TreeMap<Long, Map<String, Long>>());
+        }
+    }
+
+    /**
+     * Add deltas of topics counted at provided time to the bucket of every granularity it falls in
+     * @param time long epoch milliseconds
+     * @param topicDeltas Map<String, Long>
+     */
+    public void add(long time, Map<String, Long> topicDeltas) {
+        for (CounterGranularity granularity : CounterGranularity.values()) {
+            long bucketStart = granularity.bucketStart(time);
+            for (Map.Entry<String, Long> topicDelta : topicDeltas.entrySet()) {
+                add(granularity, bucketStart, topicDelta.getKey(), topicDelta.getValue());
+            }
+        }
+    }
+
+    /**
+     * Add delta of a topic to one bucket
+     * @param granularity CounterGranularity
+     * @param bucketStart long
+     * @param topicName String
+     * @param delta long
+     */
+    public void add(CounterGranularity granularity, long bucketStart, String topicName, long delta) {
+        TreeMap<Long, Map<String, Long>> starts = buckets.get(granularity);
+        Map<String, Long> topicDeltas = starts.get(bucketStart);
+        if (topicDeltas == null) {
+            topicDeltas = new HashMap<>();
+            starts.put(bucketStart, topicDeltas);
+        }
+        Long current = topicDeltas.get(topicName);
+        topicDeltas.put(topicName, current == null ? delta : current + delta);
+    }
+
+    /**
+     * Buckets of provided granularity
+     * @param granularity CounterGranularity
+     * @return SortedMap<Long, Map<String, Long>> topic deltas keyed by bucket start
+     */
+    public SortedMap<Long, Map<String, Long>> get(CounterGranularity granularity) {
+        return buckets.get(granularity);
+    }
+
+    /**
+     * @return boolean
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Number of buckets over all granularities
+     * @return int
+     */
+    public int size() {
+        int size = 0;
+        for (TreeMap<Long, Map<String, Long>> starts : buckets.values()) {
+            size += starts.size();
+        }
+        return size;
+    }
+
+    /**
+     * Drop the oldest buckets of every granularity holding more than provided number
+     * @param maxBuckets int most buckets kept per granularity
+     * @return long number of topic deltas dropped
+     */
+    public long trim(int maxBuckets) {
+        long dropped = 0;
+        for (TreeMap<Long, Map<String, Long>> starts : buckets.values()) {
+            while (starts.size() > maxBuckets) {
+                dropped += starts.pollFirstEntry().getValue().size();
+            }
+        }
+        return dropped;
+    }
+}
@@ -0,0 +1,253 @@
+package com.company.product.test.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * class SpaceSaving
+ * Space-Saving sketch of the most frequent topics of a stream, in bounded memory whatever the number of topics.
+ * At most capacity topics are tracked. A topic that is not tracked takes over the slot of the least counted one
+ * and inherits its count as error, so counts may be over by at most their error, and every topic seen more
+ * than total / capacity times is guaranteed to be tracked. Tracked topics sit in a min-heap by count, so an
+ * update costs a hash lookup and a sift.
+ * Sketches are mergeable: merging keeps the guarantees of a sketch of the whole stream, so sketches may be kept
+ * per thread and per minute and combined when read.
+ * Not thread-safe.
+ * @author shoaibi
+ * @version 0.1
+ */
+class SpaceSaving {
+
+    /**
+     * A tracked topic
+     */
+    private static final class Entry {
+        String topicName;
+        long count;
+        long error;
+        int index;
+
+        Entry(String topicName, long count, long error) {
+            this.topicName = topicName;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Orders entries from most to least counted
+     */
+    private static final Comparator<Entry> BY_COUNT_DESCENDING = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Long.compare(b.count, a.count);
+        }
+    };
+
+    /**
+     * Most topics tracked
+     */
+    private final int capacity;
+
+    /**
+     * Tracked topics by name
+     */
+    private final Map<String, Entry> entries;
+
+    /**
+     * Tracked topics as a min-heap by count, the least counted first
+     */
+    private final Entry[] heap;
+
+    /**
+     * Number of tracked topics
+     */
+    private int size = 0;
+
+    /**
+     * Sum of all deltas offered
+     */
+    private long total = 0;
+
+    /**
+     * @param capacity int most topics tracked
+     */
+    SpaceSaving(int capacity) {
+        this.capacity = capacity;
+        this.entries = new HashMap<>(capacity * 2);
+        this.heap = new Entry[capacity];
+    }
+
+    /**
+     * Count delta more occurrences of provided topic name
+     * @param topicName String
+     * @param delta long
+     */
+    void offer(String topicName, long delta) {
+        total += delta;
+        Entry entry = entries.get(topicName);
+        if (entry != null) {
+            entry.count += delta;
+            siftDown(entry.index);
+            return;
+        }
+        if (size < capacity) {
+            entry = new Entry(topicName, delta, 0);
+            entries.put(topicName, entry);
+            entry.index = size;
+            heap[size++] = entry;
+            siftUp(entry.index);
+            return;
+        }
+        // evict the least counted topic, whose count becomes the error of the newcomer
+        entry = heap[0];
+        entries.remove(entry.topicName);
+        entry.topicName = topicName;
+        entry.error = entry.count;
+        entry.count += delta;
+        entries.put(topicName, entry);
+        siftDown(0);
+    }
+
+    /**
+     * Upper bound of the count of any topic that is not tracked
+     * @return long 0 while there is room left, since every topic seen is then tracked
+     */
+    long untrackedBound() {
+        return size < capacity ? 0 : heap[0].count;
+    }
+
+    /**
+     * Sum of all deltas offered
+     * @return long
+     */
+    long total() {
+        return total;
+    }
+
+    /**
+     * Most counted topics, most counted first
+     * @param limit int
+     * @return List<HotTopic>
+     */
+    List<HotTopic> top(int limit) {
+        Entry[] sorted = Arrays.copyOf(heap, size);
+        Arrays.sort(sorted, BY_COUNT_DESCENDING);
+        List<HotTopic> top = new ArrayList<>(Math.min(limit, size));
+        for (int i = 0; i < sorted.length && i < limit; i++) {
+            top.add(new HotTopic(sorted[i].topicName, sorted[i].count, sorted[i].error));
+        }
+        return top;
+    }
+
+    /**
+     * Merge sketches into one tracking at most capacity topics, as if it had seen all of their streams.
+     * A topic missing from a full sketch may have been seen up to that sketch's untracked bound times, which is
+     * added to both its count and its error.
+     * @param sketches Collection<SpaceSaving>
+     * @param capacity int
+     * @return SpaceSaving
+     */
+    static SpaceSaving merge(Collection<SpaceSaving> sketches, int capacity) {
+        long bounds = 0;
+        long total = 0;
+        for (SpaceSaving sketch : sketches) {
+            bounds += sketch.untrackedBound();
+            total += sketch.total;
+        }
+        // every topic starts at the sum of the bounds of all sketches, each sketch tracking it swaps its bound
+        // for the actual count and error
+        Map<String, Entry> merged = new HashMap<>();
+        for (SpaceSaving sketch : sketches) {
+            long bound = sketch.untrackedBound();
+            for (int i = 0; i < sketch.size; i++) {
+                Entry entry = sketch.heap[i];
+                Entry sum = merged.get(entry.topicName);
+                if (sum == null) {
+                    sum = new Entry(entry.topicName, bounds, bounds);
+                    merged.put(entry.topicName, sum);
+                }
+                sum.count += entry.count - bound;
+                sum.error += entry.error - bound;
+            }
+        }
+        List<Entry> candidates = new ArrayList<>(merged.values());
+        if (candidates.size() > capacity) {
+            Collections.sort(candidates, BY_COUNT_DESCENDING);
+            candidates = candidates.subList(0, capacity);
+        }
+        SpaceSaving result = new SpaceSaving(capacity);
+        for (Entry entry : candidates) {
+            result.add(entry);
+        }
+        result.total = total;
+        return result;
+    }
+
+    /**
+     * Track an entry, there must be room for it
+     * @param entry Entry
+     */
+    private void add(Entry entry) {
+        entries.put(entry.topicName, entry);
+        entry.index = size;
+        heap[size++] = entry;
+        siftUp(entry.index);
+    }
+
+    /**
+     * Move the entry at index up the heap until its parent is counted less
+     * @param index int
+     */
+    private void siftUp(int index) {
+        Entry entry = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent].count <= entry.count) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(entry, index);
+    }
+
+    /**
+     * Move the entry at index down the heap until its children are counted more
+     * @param index int
+     */
+    private void siftDown(int index) {
+        Entry entry = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                child++;
+            }
+            if (entry.count <= heap[child].count) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(entry, index);
+    }
+
+    /**
+     * Put an entry at index of the heap
+     * @param entry Entry
+     * @param index int
+     */
+    private void place(Entry entry, int index) {
+        heap[index] = entry;
+        entry.index = index;
+    }
+}
@@ -1,28 +1,51 @@
 package com.company.product.test.db;
 
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HTableDescriptor;
-import org.apache.hadoop.hbase.KeyValue;
-import org.apache.hadoop.hbase.MasterNotRunningException;
-import org.apache.hadoop.hbase.ZooKeeperConnectionException;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * class TableManager Use as backend for @see TopicCounter
+ * All operations share one cluster Connection, table handles are borrowed from @see TablePool
+ * With counter.shards above 1 counters live in a separate table where every topic is spread over salted
+ * sub-rows, @see CounterShards, and reads sum the shards transparently.
  *
  * @author shoaibi
  * @version 0.1
@@ -39,14 +62,78 @@ abstract public class TableManager {
      */
     private static final String tableName = "topicCounters";
 
+    /**
+     * Table name that is used for storing sharded counters
+     */
+    private static final String shardedTableName = "topicCountersSharded";
+
+    /**
+     * Table name that is used for storing time bucketed counters, one family per @see CounterGranularity
+     */
+    private static final String rollupTableName = "topicRollups";
+
     /**
      * Families associated with tableName
      */
     private static final String[] families = { "counter" };
 
+    /**
+     * Maximum number of idle table handles kept around per table
+     */
+    static final int TABLE_POOL_SIZE = Integer.getInteger("hbase.tablePool.size", 16);
+
+    /**
+     * Sub-rows every topic is spread over, 1 keeps the unsharded layout of tableName
+     */
+    static final int COUNTER_SHARDS = Integer.getInteger("counter.shards", 1);
+
+    /**
+     * Qualifier counters copied over from tableName are stored under in the sharded table.
+     * Writers increment the "" qualifier, so migrating never races with them and can be repeated safely.
+     */
+    private static final String MIGRATED_QUALIFIER = "migrated";
+
+    /**
+     * Topics copied per batch when migrating to the sharded table
+     */
+    private static final int MIGRATION_BATCH_SIZE = 1000;
+
+    /**
+     * Latency of Hbase calls by kind. Scans are timed from opening to closing the scanner.
+     */
+    private static final Timer getTimer = newTimer("gets");
+    private static final Timer incrementTimer = newTimer("increments");
+    private static final Timer putTimer = newTimer("puts");
+    private static final Timer scanTimer = newTimer("scans");
+
+    /**
+     * Row key layout of shardedTableName, null when counters are not sharded
+     */
+    private static final CounterShards shards = COUNTER_SHARDS > 1 ? new CounterShards(COUNTER_SHARDS) : null;
+
+    /**
+     * Orders shard cursors by the topic they are on
+     */
+    private static final Comparator<ShardCursor> BY_TOPIC = new Comparator<ShardCursor>() {
+        @Override
+        public int compare(ShardCursor a, ShardCursor b) {
+            return Bytes.compareTo(a.topic, b.topic);
+        }
+    };
+
+    /**
+     * Cluster connection shared by every operation, created on first use
+     */
+    private static Connection connection = null;
+
+    /**
+     * Pool of table handles created from connection
+     */
+    private static TablePool tablePool = null;
+
     /**
      * Initialization
-     * Setup Hbase configuration with zookeeper credentials and ensure Hbase is up
+     * Setup Hbase configuration with zookeeper credentials. Nothing talks to Hbase until the connection is opened.
      */
     static {
         conf = HBaseConfiguration.create();
@@ -54,10 +141,97 @@ abstract public class TableManager {
         conf.set(HConstants.ZOOKEEPER_QUORUM, "192.168.20.101");
         conf.set(HConstants.ZOOKEEPER_CLIENT_PORT, "2020");
         conf.set(HConstants.ZOOKEEPER_ZNODE_PARENT, "/hbase");
-        try {
-            HBaseAdmin.checkHBaseAvailable(conf);
-        } catch (Exception e) {
-            e.printStackTrace();
+    }
+
+    /**
+     * Get the shared connection, ensuring Hbase is up and opening it if this is the first call
+     * @return Connection
+     * @throws IOException if Hbase is not available
+     */
+    protected static synchronized Connection getConnection() throws IOException {
+        if (connection == null || connection.isClosed()) {
+            try {
+                HBaseAdmin.checkHBaseAvailable(conf);
+            } catch (IOException ioe) {
+                throw ioe;
+            } catch (Exception e) {
+                throw new IOException("Hbase is not available", e);
+            }
+            connection = ConnectionFactory.createConnection(conf);
+            tablePool = new TablePool(connection, TABLE_POOL_SIZE);
+        }
+        return connection;
+    }
+
+    /**
+     * Borrow a handle for provided table name, must be handed back using @see releaseTable()
+     * @param tableName String
+     * @return Table
+     * @throws IOException
+     */
+    protected static Table borrowTable(String tableName) throws IOException {
+        TablePool pool;
+        synchronized (TableManager.class) {
+            getConnection();
+            pool = tablePool;
+        }
+        return pool.borrow(tableName);
+    }
+
+    /**
+     * Hand a handle obtained from @see borrowTable() back
+     * @param table Table
+     */
+    protected static void releaseTable(Table table) {
+        TablePool pool;
+        synchronized (TableManager.class) {
+            pool = tablePool;
+        }
+        if (pool != null) {
+            pool.release(table);
+        }
+    }
+
+    /**
+     * Walks the rows of one shard of a sharded scan, one topic at a time
+     */
+    private static final class ShardCursor {
+        private final Iterator<Result> results;
+        private Result peeked;
+
+        /**
+         * Row key of the current topic without the salt
+         */
+        byte[] topic;
+
+        /**
+         * Topic name and its count in this shard
+         */
+        String topicName;
+        long count;
+
+        ShardCursor(ResultScanner scanner) {
+            results = scanner.iterator();
+            peeked = results.hasNext() ? results.next() : null;
+        }
+
+        /**
+         * Move to the next topic, summing all of its cells even if they come in several Results
+         * @return boolean false once the shard is exhausted
+         */
+        boolean advance() {
+            if (peeked == null) {
+                return false;
+            }
+            byte[] row = peeked.getRow();
+            topicName = CounterShards.topicName(row);
+            topic = topicName.getBytes();
+            count = 0;
+            while (peeked != null && Bytes.equals(peeked.getRow(), row)) {
+                count += sumCells(peeked);
+                peeked = results.hasNext() ? results.next() : null;
+            }
+            return true;
         }
     }
 
@@ -68,23 +242,51 @@ abstract public class TableManager {
      * @throws IOException
      */
     protected static void createTable(String tableName, String[] families) throws IOException {
-        try {
-            HBaseAdmin admin = new HBaseAdmin(conf);
+        createTable(tableName, families, null);
+    }
+
+    /**
+     * Create a table pre-split on provided keys
+     * @param tableName String
+     * @param families String[]
+     * @param splitKeys byte[][] null or empty for a single region
+     * @throws IOException
+     */
+    protected static void createTable(String tableName, String[] families, byte[][] splitKeys) throws IOException {
+        HColumnDescriptor[] descriptors = new HColumnDescriptor[families.length];
+        for (int i = 0; i < families.length; i++) {
+            descriptors[i] = new HColumnDescriptor(families[i]);
+        }
+        createTable(tableName, descriptors, splitKeys);
+    }
+
+    /**
+     * Create a table with fully described families, pre-split on provided keys
+     * @param tableName String
+     * @param families HColumnDescriptor[]
+     * @param splitKeys byte[][] null or empty for a single region
+     * @throws IOException
+     */
+    protected static void createTable(String tableName, HColumnDescriptor[] families, byte[][] splitKeys)
+            throws IOException {
+        try (Admin admin = getConnection().getAdmin()) {
             // do we even need to create the table?
-            if (admin.tableExists(tableName)) {
+            if (admin.tableExists(TableName.valueOf(tableName))) {
                 System.out.println(tableName + " already exists!");
             } else {
                 // get the descriptor and attach families
-                HTableDescriptor tableDesc = new HTableDescriptor(tableName);
+                HTableDescriptor tableDesc = new HTableDescriptor(TableName.valueOf(tableName));
                 for (int i = 0; i < families.length; i++) {
-                    tableDesc.addFamily(new HColumnDescriptor(families[i]));
+                    tableDesc.addFamily(families[i]);
                 }
                 // time to do the real job
-                admin.createTable(tableDesc);
+                if (splitKeys == null || splitKeys.length == 0) {
+                    admin.createTable(tableDesc);
+                } else {
+                    admin.createTable(tableDesc, splitKeys);
+                }
                 System.out.println("Created table: " + tableName);
             }
-        } catch (ZooKeeperConnectionException | MasterNotRunningException e) {
-            e.printStackTrace();
         }
     }
 
@@ -94,14 +296,11 @@ abstract public class TableManager {
      * @throws IOException
      */
     protected static void deleteTable(String tableName) throws IOException {
-        try {
-            // easy peasy, rice and cheesy
-            HBaseAdmin admin = new HBaseAdmin(conf);
-            admin.disableTable(tableName);
-            admin.deleteTable(tableName);
+        // easy peasy, rice and cheesy
+        try (Admin admin = getConnection().getAdmin()) {
+            admin.disableTable(TableName.valueOf(tableName));
+            admin.deleteTable(TableName.valueOf(tableName));
             System.out.println("Deleted table: " + tableName);
-        } catch (ZooKeeperConnectionException | MasterNotRunningException e) {
-            e.printStackTrace();
         }
     }
 
@@ -116,10 +315,86 @@ abstract public class TableManager {
      */
     protected static long incrementColumnValue(String tableName, String rowKey, String family, String qualifier)
             throws IOException {
-        HTable table = new HTable(conf, tableName);
-        // no need to check if the record even exists or not. increment would set it to 1 if the
-        // record is missing.
-        return table.incrementColumnValue(rowKey.getBytes(), family.getBytes(), qualifier.getBytes(), 1);
+        TimerContext timer = incrementTimer.time();
+        Table table = borrowTable(tableName);
+        try {
+            // no need to check if the record even exists or not. increment would set it to 1 if the
+            // record is missing.
+            return table.incrementColumnValue(rowKey.getBytes(), family.getBytes(), qualifier.getBytes(), 1);
+        } finally {
+            releaseTable(table);
+            timer.stop();
+        }
+    }
+
+    /**
+     * Provided a map of row keys and deltas, increment the qualifier of every row by its delta in one batch
+     * @param tableName String
+     * @param rowDeltas Map<String, Long>
+     * @param family String
+     * @param qualifier String
+     * @return Map<String, Long> row deltas that were not applied, empty if all were
+     * @throws IOException if none of them could be applied
+     */
+    protected static Map<String, Long> incrementColumnValues(String tableName, Map<String, Long> rowDeltas,
+                                                             String family, String qualifier) throws IOException {
+        List<Row> increments = new ArrayList<>(rowDeltas.size());
+        for (Map.Entry<String, Long> rowDelta : rowDeltas.entrySet()) {
+            Increment increment = new Increment(rowDelta.getKey().getBytes());
+            increment.addColumn(family.getBytes(), qualifier.getBytes(), rowDelta.getValue());
+            increments.add(increment);
+        }
+        BitSet failed = batch(tableName, increments);
+        Map<String, Long> unapplied = new HashMap<>();
+        int i = 0;
+        for (Map.Entry<String, Long> rowDelta : rowDeltas.entrySet()) {
+            if (failed.get(i++)) {
+                unapplied.put(rowDelta.getKey(), rowDelta.getValue());
+            }
+        }
+        return unapplied;
+    }
+
+    /**
+     * Run a batch of increments and tell which were not applied. Hbase applies every row of a batch on its own,
+     * so when some fail the others are in already and must not be sent again.
+     * @param tableName String
+     * @param increments List<Row>
+     * @return BitSet indexes of the increments that were not applied, empty if all were
+     * @throws IOException if none of them could be applied
+     */
+    private static BitSet batch(String tableName, List<Row> increments) throws IOException {
+        BitSet failed = new BitSet(increments.size());
+        if (increments.isEmpty()) {
+            return failed;
+        }
+        Object[] results = new Object[increments.size()];
+        TimerContext timer = incrementTimer.time();
+        Table table = borrowTable(tableName);
+        try {
+            table.batch(increments, results);
+        } catch (InterruptedException ie) {
+            // whatever is still in flight may or may not be applied, nothing tells which
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while incrementing " + increments.size() + " rows", ie);
+        } catch (IOException ioe) {
+            // results hold a Result for every row applied and the error of every other one
+            for (int i = 0; i < results.length; i++) {
+                if (!(results[i] instanceof Result)) {
+                    failed.set(i);
+                }
+            }
+            if (failed.cardinality() == results.length) {
+                throw ioe;
+            }
+            System.err.println("Unable to increment " + failed.cardinality() + " of " + results.length
+                    + " rows of " + tableName);
+            ioe.printStackTrace();
+        } finally {
+            releaseTable(table);
+            timer.stop();
+        }
+        return failed;
     }
 
     /**
@@ -131,31 +406,349 @@ abstract public class TableManager {
      */
     protected static Map<String, Long> getOneRecord(String tableName, String rowKey) throws IOException {
         Map<String, Long> keyValueMap = new HashMap<>();
-        HTable table = new HTable(conf, tableName);
-        Get get = new Get(rowKey.getBytes());
-        Result r = table.get(get);
-        keyValueMap.putAll(getKeyValueMapFromResult(r));
+        TimerContext timer = getTimer.time();
+        Table table = borrowTable(tableName);
+        try {
+            Get get = new Get(rowKey.getBytes());
+            Result r = table.get(get);
+            keyValueMap.putAll(getKeyValueMapFromResult(r));
+        } finally {
+            releaseTable(table);
+            timer.stop();
+        }
         return keyValueMap;
     }
 
+    /**
+     * Provided row keys, get the value of one column of each with a single batched multi-get
+     * @param tableName String
+     * @param rowKeys List<String>
+     * @param family String
+     * @param qualifier String
+     * @return long[] values in the order of rowKeys, 0 for rows or columns that do not exist
+     * @throws IOException
+     */
+    protected static long[] getColumnValues(String tableName, List<String> rowKeys, String family, String qualifier)
+            throws IOException {
+        long[] values = new long[rowKeys.size()];
+        if (rowKeys.isEmpty()) {
+            return values;
+        }
+        byte[] familyBytes = family.getBytes();
+        byte[] qualifierBytes = qualifier.getBytes();
+        List<Get> gets = new ArrayList<>(rowKeys.size());
+        for (String rowKey : rowKeys) {
+            gets.add(new Get(rowKey.getBytes()).addColumn(familyBytes, qualifierBytes));
+        }
+        Result[] results;
+        TimerContext timer = getTimer.time();
+        Table table = borrowTable(tableName);
+        try {
+            results = table.get(gets);
+        } finally {
+            releaseTable(table);
+            timer.stop();
+        }
+        for (int i = 0; i < results.length; i++) {
+            byte[] value = results[i].getValue(familyBytes, qualifierBytes);
+            values[i] = value == null ? 0 : Bytes.toLong(value);
+        }
+        return values;
+    }
+
+    /**
+     * Provided row keys of a sharded table, get the sum of all cells of family over all shards of each,
+     * with a single batched multi-get
+     * @param tableName String
+     * @param tableShards CounterShards
+     * @param rowKeys List<String> unsalted row keys
+     * @param family String
+     * @return long[] values in the order of rowKeys, 0 for rows that do not exist in any shard
+     * @throws IOException
+     */
+    protected static long[] getShardedValues(String tableName, CounterShards tableShards, List<String> rowKeys,
+                                             String family) throws IOException {
+        long[] values = new long[rowKeys.size()];
+        if (rowKeys.isEmpty()) {
+            return values;
+        }
+        int count = tableShards.count();
+        byte[] familyBytes = family.getBytes();
+        List<Get> gets = new ArrayList<>(rowKeys.size() * count);
+        for (String rowKey : rowKeys) {
+            for (int shard = 0; shard < count; shard++) {
+                gets.add(new Get(CounterShards.rowKey(shard, rowKey).getBytes()).addFamily(familyBytes));
+            }
+        }
+        Result[] results;
+        TimerContext timer = getTimer.time();
+        Table table = borrowTable(tableName);
+        try {
+            results = table.get(gets);
+        } finally {
+            releaseTable(table);
+            timer.stop();
+        }
+        for (int i = 0; i < results.length; i++) {
+            values[i / count] += sumCells(results[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Provided a map of row keys and values, put every value into the qualifier of its row in one batch
+     * @param tableName String
+     * @param rowValues Map<String, Long>
+     * @param family String
+     * @param qualifier String
+     * @throws IOException
+     */
+    protected static void putColumnValues(String tableName, Map<String, Long> rowValues, String family,
+                                          String qualifier) throws IOException {
+        List<Row> puts = new ArrayList<>(rowValues.size());
+        for (Map.Entry<String, Long> rowValue : rowValues.entrySet()) {
+            Put put = new Put(rowValue.getKey().getBytes());
+            put.addColumn(family.getBytes(), qualifier.getBytes(), Bytes.toBytes(rowValue.getValue()));
+            puts.add(put);
+        }
+        TimerContext timer = putTimer.time();
+        Table table = borrowTable(tableName);
+        try {
+            table.batch(puts, new Object[puts.size()]);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while putting " + puts.size() + " rows", ie);
+        } finally {
+            releaseTable(table);
+            timer.stop();
+        }
+    }
+
     /**
      * Scan (or list) a table
      * @param tableName String
      * @return  Map<String, Long>
+     * @throws IOException
      */
-    protected static Map<String, Long> getAllRecords(String tableName) {
-        Map<String, Long> keyValueMap = new HashMap<>();
+    protected static Map<String, Long> getAllRecords(String tableName) throws IOException {
+        final Map<String, Long> keyValueMap = new HashMap<>();
+        scanRecords(tableName, families[0], new CounterScan(), new CounterVisitor() {
+            @Override
+            public boolean visit(String topicName, long count) {
+                keyValueMap.put(topicName, count);
+                return true;
+            }
+        });
+        return keyValueMap;
+    }
+
+    /**
+     * Stream the rows of a table described by spec through visitor, one row at a time and in row key order.
+     * Only family is read. Sharded tables are read shard by shard and merged, so every topic is visited once
+     * with the sum of its shards.
+     * @param tableName String
+     * @param family String
+     * @param spec CounterScan
+     * @param visitor CounterVisitor
+     * @return String cursor of the next page if spec's limit was reached, null otherwise
+     * @throws IOException
+     */
+    protected static String scanRecords(String tableName, String family, CounterScan spec, CounterVisitor visitor)
+            throws IOException {
+        CounterShards tableShards = shardsOf(tableName);
+        if (tableShards != null) {
+            return scanShardedRecords(tableName, family, tableShards, spec, visitor);
+        }
+        byte[][] range = scanRange(spec);
+        Scan scan = newScan(family, spec, range[0], range[1]);
+
+        int visited = 0;
+        TimerContext timer = scanTimer.time();
+        Table table = borrowTable(tableName);
+        try (ResultScanner scanner = table.getScanner(scan)) {
+            for (Result r : scanner) {
+                for (Cell cell : r.rawCells()) {
+                    String topicName = new String(CellUtil.cloneRow(cell));
+                    if (!visitor.visit(topicName, Bytes.toLong(CellUtil.cloneValue(cell)))) {
+                        return null;
+                    }
+                    if (spec.getLimit() > 0 && ++visited >= spec.getLimit()) {
+                        return topicName;
+                    }
+                }
+            }
+        } finally {
+            releaseTable(table);
+            timer.stop();
+        }
+        return null;
+    }
+
+    /**
+     * Merge one scan per shard of a sharded table, in row key order of the unsalted keys, @see scanRecords()
+     * @param tableName String
+     * @param family String
+     * @param tableShards CounterShards
+     * @param spec CounterScan
+     * @param visitor CounterVisitor
+     * @return String cursor of the next page if spec's limit was reached, null otherwise
+     * @throws IOException
+     */
+    private static String scanShardedRecords(String tableName, String family, CounterShards tableShards,
+                                             CounterScan spec, CounterVisitor visitor) throws IOException {
+        byte[][] range = scanRange(spec);
+        int visited = 0;
+        List<ResultScanner> scanners = new ArrayList<>(tableShards.count());
+        TimerContext timer = scanTimer.time();
+        Table table = borrowTable(tableName);
         try {
-            HTable table = new HTable(conf, tableName);
-            Scan s = new Scan();
-            ResultScanner ss = table.getScanner(s);
-            for (Result r : ss) {
-                keyValueMap.putAll(getKeyValueMapFromResult(r));
+            PriorityQueue<ShardCursor> heads = new PriorityQueue<>(tableShards.count(), BY_TOPIC);
+            for (int shard = 0; shard < tableShards.count(); shard++) {
+                byte[] salt = CounterShards.salt(shard).getBytes();
+                byte[] stopRow = range[1].length == 0 ? prefixStopRow(salt) : Bytes.add(salt, range[1]);
+                ResultScanner scanner = table.getScanner(newScan(family, spec, Bytes.add(salt, range[0]), stopRow));
+                scanners.add(scanner);
+                ShardCursor cursor = new ShardCursor(scanner);
+                if (cursor.advance()) {
+                    heads.add(cursor);
+                }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            while (!heads.isEmpty()) {
+                ShardCursor head = heads.poll();
+                byte[] topic = head.topic;
+                String topicName = head.topicName;
+                long count = head.count;
+                if (head.advance()) {
+                    heads.add(head);
+                }
+                // the other shards holding the same topic are next in line
+                while (!heads.isEmpty() && Bytes.equals(heads.peek().topic, topic)) {
+                    ShardCursor same = heads.poll();
+                    count += same.count;
+                    if (same.advance()) {
+                        heads.add(same);
+                    }
+                }
+                if (!visitor.visit(topicName, count)) {
+                    return null;
+                }
+                if (spec.getLimit() > 0 && ++visited >= spec.getLimit()) {
+                    return topicName;
+                }
+            }
+        } finally {
+            for (ResultScanner scanner : scanners) {
+                scanner.close();
+            }
+            releaseTable(table);
+            timer.stop();
         }
-        return keyValueMap;
+        return null;
+    }
+
+    /**
+     * Provided a scan description, get the [start, stop) row key range it covers. Stop is empty if unbounded.
+     * @param spec CounterScan
+     * @return byte[][] start and stop row
+     */
+    private static byte[][] scanRange(CounterScan spec) {
+        byte[] startRow = HConstants.EMPTY_START_ROW;
+        byte[] stopRow = HConstants.EMPTY_END_ROW;
+        if (spec.getPrefix() != null && !spec.getPrefix().isEmpty()) {
+            startRow = spec.getPrefix().getBytes();
+            stopRow = prefixStopRow(startRow);
+        }
+        if (spec.getStartRow() != null) {
+            startRow = max(startRow, spec.getStartRow().getBytes());
+        }
+        if (spec.getCursor() != null) {
+            // the smallest row key after the cursor is the cursor followed by a zero byte
+            startRow = max(startRow, Bytes.add(spec.getCursor().getBytes(), new byte[] { 0 }));
+        }
+        if (spec.getStopRow() != null) {
+            byte[] specStopRow = spec.getStopRow().getBytes();
+            if (stopRow.length == 0 || Bytes.compareTo(specStopRow, stopRow) < 0) {
+                stopRow = specStopRow;
+            }
+        }
+        return new byte[][] { startRow, stopRow };
+    }
+
+    /**
+     * Build the Hbase scan of family over [startRow, stopRow) tuned as spec asks
+     * @param family String
+     * @param spec CounterScan
+     * @param startRow byte[]
+     * @param stopRow byte[]
+     * @return Scan
+     */
+    private static Scan newScan(String family, CounterScan spec, byte[] startRow, byte[] stopRow) {
+        Scan scan = new Scan();
+        scan.addFamily(family.getBytes());
+        scan.setCaching(spec.getLimit() > 0 ? Math.min(spec.getCaching(), spec.getLimit()) : spec.getCaching());
+        scan.setBatch(spec.getBatch());
+        scan.setStartRow(startRow);
+        scan.setStopRow(stopRow);
+        return scan;
+    }
+
+    /**
+     * Provided a prefix, get the first row key that no longer starts with it. Empty if there is none.
+     * @param prefix byte[]
+     * @return byte[]
+     */
+    private static byte[] prefixStopRow(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xff) {
+                byte[] stopRow = new byte[i + 1];
+                System.arraycopy(prefix, 0, stopRow, 0, i + 1);
+                stopRow[i]++;
+                return stopRow;
+            }
+        }
+        return HConstants.EMPTY_END_ROW;
+    }
+
+    /**
+     * The greater of two row keys
+     * @param a byte[]
+     * @param b byte[]
+     * @return byte[]
+     */
+    private static byte[] max(byte[] a, byte[] b) {
+        return Bytes.compareTo(a, b) >= 0 ? a : b;
+    }
+
+    /**
+     * Sum of all cells of a Result, 0 if it is empty
+     * @param r Result
+     * @return long
+     */
+    private static long sumCells(Result r) {
+        long sum = 0;
+        if (!r.isEmpty()) {
+            for (Cell cell : r.rawCells()) {
+                sum += Bytes.toLong(CellUtil.cloneValue(cell));
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Row key layout of provided table, null if it is not sharded
+     * @param tableName String
+     * @return CounterShards
+     */
+    private static CounterShards shardsOf(String tableName) {
+        return shardedTableName.equals(tableName) ? shards : null;
+    }
+
+    /**
+     * Table counters are currently read from and written to
+     * @return String
+     */
+    private static String counterTableName() {
+        return shards == null ? tableName : shardedTableName;
     }
 
     /**
@@ -165,20 +758,40 @@ abstract public class TableManager {
      */
     protected static Map<String, Long> getKeyValueMapFromResult(Result r) {
         Map<String, Long> keyValueMap = new HashMap<>();
-        for (KeyValue kv : r.raw()) {
-            SimpleEntry<String, Long> kvE = getKeyValueEntryFromResult(kv);
+        for (Cell cell : r.rawCells()) {
+            SimpleEntry<String, Long> kvE = getKeyValueEntryFromResult(cell);
             keyValueMap.put(kvE.getKey(), kvE.getValue());
         }
         return keyValueMap;
     }
 
     /**
-     * Provided a KeyValue object compute the SimpleEntry with object's key and value's correct representation
-     * @param kv
+     * Provided a Cell object compute the SimpleEntry with cell's row and value's correct representation
+     * @param cell Cell
      * @return SimpleEntry<String, Long>
      */
-    protected static SimpleEntry<String, Long> getKeyValueEntryFromResult(KeyValue kv) {
-        return new SimpleEntry<>(new String(kv.getRow()), Bytes.toLong(kv.getValue()));
+    protected static SimpleEntry<String, Long> getKeyValueEntryFromResult(Cell cell) {
+        return new SimpleEntry<>(new String(CellUtil.cloneRow(cell)), Bytes.toLong(CellUtil.cloneValue(cell)));
+    }
+
+    /**
+     * Create a timer of Hbase calls, in milliseconds
+     * @param name String
+     * @return Timer
+     */
+    private static Timer newTimer(String name) {
+        return Metrics.newTimer(TableManager.class, name, TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Row key of the bucket of provided topic name starting at bucketStart.
+     * Buckets of a topic are contiguous and in time order, topic names can not contain the separator.
+     * @param topicName String
+     * @param bucketStart long
+     * @return String
+     */
+    private static String rollupRowKey(String topicName, long bucketStart) {
+        return String.format("%s\0%013d", topicName, bucketStart);
     }
 
     /**
@@ -187,28 +800,96 @@ abstract public class TableManager {
      * @throws IOException
      */
     static void createTopicCounterTable() throws IOException {
-        createTable(tableName, families);
+        if (shards == null) {
+            createTable(tableName, families);
+        } else {
+            createTable(shardedTableName, families, shards.splitKeys());
+        }
+    }
+
+    /**
+     * Look up where every region of the counter table (and of the rollup table, with rollups) lives and open a
+     * table handle for each, so the first reads and writes do not pay for it
+     * @param rollups boolean
+     * @throws IOException
+     */
+    static void warmUp(boolean rollups) throws IOException {
+        List<String> tableNames = new ArrayList<>();
+        tableNames.add(counterTableName());
+        if (rollups) {
+            tableNames.add(rollupTableName);
+        }
+        for (String name : tableNames) {
+            try (RegionLocator locator = getConnection().getRegionLocator(TableName.valueOf(name))) {
+                // cached by the connection from now on
+                int regions = locator.getAllRegionLocations().size();
+                System.out.println("Located " + regions + " regions of " + name);
+            }
+            releaseTable(borrowTable(name));
+        }
     }
 
     /**
-     * Provided a topic name increment its counter and return new counter value
+     * Provided a topic name increment its counter and return new counter value.
+     * With sharded counters that is the value of the shard written to.
      * @param topicName String
      * @return long
      * @throws IOException
      */
     static long incrementTopicCounter(String topicName) throws IOException {
-        return incrementColumnValue(tableName, topicName, families[0], "");
+        if (shards == null) {
+            return incrementColumnValue(tableName, topicName, families[0], "");
+        }
+        // the value of our shard only, not the total
+        return incrementColumnValue(shardedTableName, shards.writerRowKey(topicName), families[0], "");
+    }
+
+    /**
+     * Provided a map of topic names and deltas, increment all of their counters in one batch
+     * @param topicDeltas Map<String, Long>
+     * @return Map<String, Long> topic deltas that were not applied, empty if all were
+     * @throws IOException if none of them could be applied
+     */
+    static Map<String, Long> incrementTopicCounters(Map<String, Long> topicDeltas) throws IOException {
+        if (shards == null) {
+            return incrementColumnValues(tableName, topicDeltas, families[0], "");
+        }
+        Map<String, Long> rowDeltas = new HashMap<>(topicDeltas.size() * 2);
+        Map<String, String> rowTopics = new HashMap<>(topicDeltas.size() * 2);
+        for (Map.Entry<String, Long> topicDelta : topicDeltas.entrySet()) {
+            String rowKey = shards.writerRowKey(topicDelta.getKey());
+            rowDeltas.put(rowKey, topicDelta.getValue());
+            rowTopics.put(rowKey, topicDelta.getKey());
+        }
+        Map<String, Long> unapplied = new HashMap<>();
+        for (Map.Entry<String, Long> rowDelta : incrementColumnValues(shardedTableName, rowDeltas, families[0], "")
+                .entrySet()) {
+            unapplied.put(rowTopics.get(rowDelta.getKey()), rowDelta.getValue());
+        }
+        return unapplied;
     }
 
     /**
-     * Provided a topic name get its counter. Throw NullPointerException if the record does not exist
+     * Provided a topic name get its counter, 0 if the record does not exist
      * @param topicName String
      * @return long
      * @throws IOException
-     * @throws NullPointerException
      */
-    static long getTopicCounter(String topicName) throws IOException, NullPointerException {
-        return getOneRecord(tableName, topicName).get(topicName);
+    static long getTopicCounter(String topicName) throws IOException {
+        return getTopicCounters(Collections.singletonList(topicName))[0];
+    }
+
+    /**
+     * Provided topic names get their counters with one batched read, 0 for those whose record does not exist
+     * @param topicNames List<String>
+     * @return long[] counters in the order of topicNames
+     * @throws IOException
+     */
+    static long[] getTopicCounters(List<String> topicNames) throws IOException {
+        if (shards == null) {
+            return getColumnValues(tableName, topicNames, families[0], "");
+        }
+        return getShardedValues(shardedTableName, shards, topicNames, families[0]);
     }
 
     /**
@@ -217,7 +898,151 @@ abstract public class TableManager {
      * @throws IOException
      */
     static Map<String, Long> getAllTopicsCounters() throws IOException {
-        return getAllRecords(tableName);
+        return getAllRecords(counterTableName());
+    }
+
+    /**
+     * Stream counters described by spec through visitor, @see scanRecords()
+     * @param spec CounterScan
+     * @param visitor CounterVisitor
+     * @return String cursor of the next page if spec's limit was reached, null otherwise
+     * @throws IOException
+     */
+    static String scanTopicCounters(CounterScan spec, CounterVisitor visitor) throws IOException {
+        return scanRecords(counterTableName(), families[0], spec, visitor);
+    }
+
+    /**
+     * Copy the counters of the unsharded table into the sharded one, under MIGRATED_QUALIFIER of shard 0.
+     * Counters are put, not added, so running it again after an interruption does not count anything twice.
+     * Run it once writers have switched to the sharded table and the unsharded one no longer changes.
+     * @return long number of topics copied
+     * @throws IOException
+     * @throws IllegalStateException if counters are not sharded
+     */
+    static long migrateToShardedTable() throws IOException, IllegalStateException {
+        if (shards == null) {
+            throw new IllegalStateException("counter.shards must be above 1 to migrate to the sharded table");
+        }
+        createTopicCounterTable();
+        long migrated = 0;
+        final Map<String, Long> batch = new HashMap<>();
+        String cursor = null;
+        do {
+            batch.clear();
+            cursor = scanRecords(tableName, families[0],
+                    new CounterScan().setCursor(cursor).setLimit(MIGRATION_BATCH_SIZE), new CounterVisitor() {
+                        @Override
+                        public boolean visit(String topicName, long count) {
+                            batch.put(CounterShards.rowKey(0, topicName), count);
+                            return true;
+                        }
+                    });
+            if (!batch.isEmpty()) {
+                putColumnValues(shardedTableName, batch, families[0], MIGRATED_QUALIFIER);
+                migrated += batch.size();
+            }
+        } while (cursor != null);
+        return migrated;
+    }
+
+    /**
+     * Create the rollup table if it does not exist, with a family per granularity expiring after its ttl
+     * @throws IOException
+     */
+    static void createRollupTable() throws IOException {
+        CounterGranularity[] granularities = CounterGranularity.values();
+        HColumnDescriptor[] descriptors = new HColumnDescriptor[granularities.length];
+        for (int i = 0; i < granularities.length; i++) {
+            descriptors[i] = new HColumnDescriptor(granularities[i].getFamily())
+                    .setTimeToLive(granularities[i].getTtlSeconds());
+        }
+        createTable(rollupTableName, descriptors, null);
+    }
+
+    /**
+     * Provided deltas of topic names per bucket, increment all of those buckets in one batch.
+     * Buckets of different granularities starting at the same time share a row, each is a column family of it.
+     * @param deltas RollupDeltas
+     * @return RollupDeltas buckets that were not applied, empty if all were
+     * @throws IOException if none of them could be applied
+     */
+    static RollupDeltas incrementRollups(RollupDeltas deltas) throws IOException {
+        CounterGranularity[] granularities = CounterGranularity.values();
+        List<Row> increments = new ArrayList<>();
+        for (CounterGranularity granularity : granularities) {
+            byte[] family = granularity.getFamily().getBytes();
+            for (Map.Entry<Long, Map<String, Long>> bucket : deltas.get(granularity).entrySet()) {
+                for (Map.Entry<String, Long> topicDelta : bucket.getValue().entrySet()) {
+                    Increment increment = new Increment(rollupRowKey(topicDelta.getKey(), bucket.getKey()).getBytes());
+                    increment.addColumn(family, new byte[0], topicDelta.getValue());
+                    increments.add(increment);
+                }
+            }
+        }
+        BitSet failed = batch(rollupTableName, increments);
+        RollupDeltas unapplied = new RollupDeltas();
+        int i = 0;
+        for (CounterGranularity granularity : granularities) {
+            for (Map.Entry<Long, Map<String, Long>> bucket : deltas.get(granularity).entrySet()) {
+                for (Map.Entry<String, Long> topicDelta : bucket.getValue().entrySet()) {
+                    if (failed.get(i++)) {
+                        unapplied.add(granularity, bucket.getKey(), topicDelta.getKey(), topicDelta.getValue());
+                    }
+                }
+            }
+        }
+        return unapplied;
+    }
+
+    /**
+     * Provided a topic name, get its buckets of provided granularity overlapping [from, to) with one bounded scan
+     * @param topicName String
+     * @param granularity CounterGranularity
+     * @param from long epoch milliseconds, inclusive
+     * @param to long epoch milliseconds, exclusive
+     * @return SortedMap<Long, Long> counts keyed by bucket start, buckets without messages are left out
+     * @throws IOException
+     */
+    static SortedMap<Long, Long> getRollups(String topicName, CounterGranularity granularity, long from, long to)
+            throws IOException {
+        SortedMap<Long, Long> buckets = new TreeMap<>();
+        long firstBucket = granularity.bucketStart(from);
+        if (to <= firstBucket) {
+            return buckets;
+        }
+        byte[] family = granularity.getFamily().getBytes();
+        Scan scan = new Scan(rollupRowKey(topicName, firstBucket).getBytes(), rollupRowKey(topicName, to).getBytes());
+        scan.addColumn(family, new byte[0]);
+        scan.setCaching((int) Math.min((to - firstBucket) / granularity.getMillis() + 1, 1000));
+        int bucketOffset = topicName.getBytes().length + 1;
+        TimerContext timer = scanTimer.time();
+        Table table = borrowTable(rollupTableName);
+        try (ResultScanner scanner = table.getScanner(scan)) {
+            for (Result r : scanner) {
+                byte[] row = r.getRow();
+                long bucketStart = Long.parseLong(new String(row, bucketOffset, row.length - bucketOffset));
+                buckets.put(bucketStart, Bytes.toLong(r.getValue(family, new byte[0])));
+            }
+        } finally {
+            releaseTable(table);
+            timer.stop();
+        }
+        return buckets;
+    }
+
+    /**
+     * Clean the slate of rollups
+     */
+    static void resetRollups() {
+        try {
+            deleteTable(rollupTableName);
+            createRollupTable();
+            System.out.println("Rollups reset");
+        } catch (Exception e) {
+            System.err.println("Failed to reset rollups");
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -225,7 +1050,7 @@ abstract public class TableManager {
      */
     static void resetCounters() {
         try {
-            deleteTable(tableName);
+            deleteTable(counterTableName());
             TableManager.createTopicCounterTable();
             System.out.println("Counters reset");
         } catch (Exception e) {
@@ -233,4 +1058,20 @@ abstract public class TableManager {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Close pooled table handles and the shared connection
+     */
+    static synchronized void close() {
+        if (tablePool != null) {
+            tablePool.close();
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+package com.company.product.test.db;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Table;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * class TablePool
+ * Bounded pool of Table handles created from one shared Connection.
+ * Table instances are not thread-safe so each caller borrows one, uses it and hands it back.
+ * Handles returned while the pool for that table is full are closed instead of kept.
+ * @author shoaibi
+ * @version 0.1
+ */
+class TablePool {
+
+    /**
+     * Shared cluster connection, owns region location cache and rpc clients
+     */
+    private final Connection connection;
+
+    /**
+     * Maximum number of idle handles kept per table
+     */
+    private final int maxIdlePerTable;
+
+    /**
+     * Idle handles keyed by table name
+     */
+    private final ConcurrentHashMap<String, BlockingQueue<Table>> idle = new ConcurrentHashMap<>();
+
+    /**
+     * Set once close() has been called
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * @param connection Connection
+     * @param maxIdlePerTable int
+     */
+    TablePool(Connection connection, int maxIdlePerTable) {
+        this.connection = connection;
+        this.maxIdlePerTable = maxIdlePerTable;
+    }
+
+    /**
+     * Get an idle handle for tableName or create a new one if none are idle
+     * @param tableName String
+     * @return Table
+     * @throws IOException
+     */
+    Table borrow(String tableName) throws IOException {
+        if (closed) {
+            throw new IOException("Table pool is closed");
+        }
+        Table table = idleFor(tableName).poll();
+        if (table == null) {
+            table = connection.getTable(TableName.valueOf(tableName));
+        }
+        return table;
+    }
+
+    /**
+     * Hand a borrowed handle back to the pool
+     * @param table Table
+     */
+    void release(Table table) {
+        if (table == null) {
+            return;
+        }
+        if (closed || !idleFor(table.getName().getNameAsString()).offer(table)) {
+            closeQuietly(table);
+        }
+    }
+
+    /**
+     * Close all idle handles, handles still borrowed are closed when released
+     */
+    void close() {
+        closed = true;
+        for (BlockingQueue<Table> tables : idle.values()) {
+            Table table;
+            while ((table = tables.poll()) != null) {
+                closeQuietly(table);
+            }
+        }
+    }
+
+    /**
+     * Get (or lazily create) the idle queue of provided table name
+     * @param tableName String
+     * @return BlockingQueue<Table>
+     */
+    private BlockingQueue<Table> idleFor(String tableName) {
+        BlockingQueue<Table> tables = idle.get(tableName);
+        if (tables == null) {
+            BlockingQueue<Table> fresh = new ArrayBlockingQueue<>(maxIdlePerTable);
+            tables = idle.putIfAbsent(tableName, fresh);
+            if (tables == null) {
+                tables = fresh;
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Close a handle, reporting but otherwise ignoring failures
+     * @param table Table
+     */
+    private static void closeQuietly(Table table) {
+        try {
+            table.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+}
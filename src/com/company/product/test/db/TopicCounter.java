@@ -1,49 +1,489 @@
 package com.company.product.test.db;
 
+import com.company.product.test.lifecycle.Service;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
 
 /**
  * class TopicCounter
  * Class used to manage counters for topics, including operations such as
  * incrementing, getting counter for a specific topic or reseting, getting counters for all topics.
+ * Counters are kept in the @see CounterStore picked with -Dcounter.store.
  * @author shoaibi
  * @version 0.1
  */
 abstract public class TopicCounter {
     /**
-     * Create the table
+     * Command line switch to copy counters of the unsharded table into the sharded one
+     */
+    static final String MIGRATE_SWITCH = "--migrate-shards";
+
+    /**
+     * Flush pending increments once this many have been buffered
+     */
+    static final long FLUSH_MAX_PENDING = Long.getLong("counter.flush.maxPending", 1000);
+
+    /**
+     * Flush pending increments at least this often, in milliseconds
+     */
+    static final long FLUSH_INTERVAL_MILLIS = Long.getLong("counter.flush.intervalMillis", 1000);
+
+    /**
+     * Maximum number of topics whose counters are cached for readers
+     */
+    static final int CACHE_SIZE = Integer.getInteger("counter.cache.size", 10000);
+
+    /**
+     * How long cached counters are served without going back to the store, in milliseconds
+     */
+    static final long CACHE_TTL_MILLIS = Long.getLong("counter.cache.ttlMillis", 5000);
+
+    /**
+     * Whether counters are also rolled up into minute, hour and day buckets
+     */
+    static final boolean ROLLUPS = Boolean.getBoolean("counter.rollups");
+
+    /**
+     * Directory of the write-ahead log of buffered increments, none if not set
+     */
+    static final String WAL_DIR = System.getProperty("counter.wal.dir");
+
+    /**
+     * Size of a write-ahead log segment, in bytes
+     */
+    static final int WAL_SEGMENT_BYTES = Integer.getInteger("counter.wal.segmentBytes", 64 * 1024 * 1024);
+
+    /**
+     * How often write-ahead log segments are forced to disk, in milliseconds, 0 to leave it to the os
+     */
+    static final long WAL_FORCE_INTERVAL_MILLIS = Long.getLong("counter.wal.forceIntervalMillis", 0);
+
+    /**
+     * Store counters are kept in: hbase, or memory for a single node without outside services
+     */
+    static final String STORE = System.getProperty("counter.store", "hbase");
+
+    /**
+     * Whether the most counted topics are tracked, @see HotTopics
+     */
+    static final boolean HOT_TOPICS = Boolean.parseBoolean(System.getProperty("counter.hotTopics", "true"));
+
+    /**
+     * Most topics tracked per hot topics sketch. Topics seen more than 1 / HOT_TOPICS_CAPACITY of the time are
+     * always among them.
+     */
+    static final int HOT_TOPICS_CAPACITY = Integer.getInteger("counter.hotTopics.capacity", 1000);
+
+    /**
+     * Most minutes a hot topics window may span
+     */
+    static final int HOT_TOPICS_WINDOW_MINUTES = Integer.getInteger("counter.hotTopics.windowMinutes", 60);
+
+    /**
+     * Hot topics listed by the hot-topics gauge
+     */
+    static final int HOT_TOPICS_GAUGE_SIZE = 10;
+
+    /**
+     * Store picked with STORE, opened when service starts
+     */
+    private static final CounterStore store = newStore(STORE);
+
+    /**
+     * Write-behind buffer that batches increments before they reach the store, null until service started
+     */
+    private static volatile CounterAggregator aggregator = null;
+
+    /**
+     * Read-through cache used by getCount(), getCounts() and getPage()
+     */
+    private static final CounterCache cache = new CounterCache(store, CACHE_SIZE, CACHE_TTL_MILLIS);
+
+    /**
+     * Most counted topics, null until service started or if not tracked
+     */
+    private static volatile HotTopics hotTopics = null;
+
+    /**
+     * Whether the write-ahead log only replays what was committed, @see setLogCommits()
+     */
+    private static volatile boolean logCommits = false;
+
+    /**
+     * Expose the hot topics over JMX once, whichever sketches the started counters track, so processes without
+     * /topics/hot, e.g. MessageConsumer, show them too
      */
     static {
-        try {
-            TableManager.createTopicCounterTable();
-            System.out.println("Table created");
-        } catch (IOException e) {
-            System.err.println("Failed to create table");
-            e.printStackTrace();
+        if (HOT_TOPICS) {
+            Metrics.newGauge(TopicCounter.class, "hot-topics", new Gauge<String>() {
+                @Override
+                public String value() {
+                    HotTopics tracked = hotTopics;
+                    StringBuilder topics = new StringBuilder();
+                    if (tracked != null) {
+                        for (HotTopic topic : tracked.top(HOT_TOPICS_GAUGE_SIZE, 0)) {
+                            if (topics.length() > 0) {
+                                topics.append(", ");
+                            }
+                            topics.append(topic.getTopicName()).append('=').append(topic.getCount());
+                        }
+                    }
+                    return topics.toString();
+                }
+            });
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new HotTopicsMXBean() {
+                    @Override
+                    public List<String> top(int limit, int minutes, boolean exact) throws IOException {
+                        List<String> topics = new ArrayList<>();
+                        for (HotTopic topic : getHotTopics(limit, minutes, exact)) {
+                            topics.add(topic.toString());
+                        }
+                        return topics;
+                    }
+                }, new ObjectName(new MetricName(TopicCounter.class, "hot-topics-query").getMBeanName()));
+            } catch (JMException jme) {
+                System.err.println("Unable to expose hot topics over JMX");
+                jme.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Lifecycle of the counters: starting opens the store, sets up the aggregator and replays what a previous run
+     * left in the write-ahead log, then warms up the store. Stopping flushes buffered increments and releases the
+     * store. Used without a @see com.company.product.test.lifecycle.Lifecycle, the first call starts it.
+     */
+    public static final Service service = new Service("counters") {
+        @Override
+        protected void doStart() throws IOException {
+            open();
+        }
+
+        @Override
+        protected void doWarmUp() throws IOException {
+            store.warmUp(ROLLUPS);
+        }
+
+        @Override
+        protected void doStop() {
+            release();
+        }
+    };
+
+    /**
+     * Class's entry point for maintenance. Pass --migrate-shards, along with -Dcounter.shards, to copy the
+     * counters of the unsharded table into the sharded one.
+     * @param argv String[]
+     * @throws IOException
+     * @throws IllegalArgumentException
+     */
+    public static void main(String[] argv) throws IOException, IllegalArgumentException {
+        if (argv.length != 1 || !MIGRATE_SWITCH.equals(argv[0])) {
+            throw new IllegalArgumentException(String.valueOf(TopicCounter.class.toString()
+                    + " accepts " + MIGRATE_SWITCH));
+        }
+        long migrated = TableManager.migrateToShardedTable();
+        System.out.println("Migrated counters of " + migrated + " topics");
+    }
+
+    /**
+     * Provided a store name, create the store
+     * @param name String hbase or memory
+     * @return CounterStore
+     * @throws IllegalArgumentException if there is no such store
+     */
+    static CounterStore newStore(String name) throws IllegalArgumentException {
+        switch (name) {
+            case "hbase":
+                return new HbaseCounterStore();
+            case "memory":
+                return new MemoryCounterStore();
+            default:
+                throw new IllegalArgumentException("Unknown counter store: " + name);
+        }
+    }
+
+    /**
+     * Open the store, setup the aggregator and replay what a previous run left in the write-ahead log
+     * @throws IOException
+     */
+    private static void open() throws IOException {
+        store.open(ROLLUPS);
+        System.out.println("Counter store " + STORE + " opened");
+        DeltaLog log = null;
+        if (WAL_DIR != null) {
+            try {
+                log = new DeltaLog(new File(WAL_DIR), WAL_SEGMENT_BYTES, WAL_FORCE_INTERVAL_MILLIS, logCommits);
+            } catch (IOException | RuntimeException e) {
+                // the next attempt opens the store again
+                store.close();
+                throw e;
+            }
+        }
+        HotTopics tracked = HOT_TOPICS ? new HotTopics(HOT_TOPICS_CAPACITY, HOT_TOPICS_WINDOW_MINUTES) : null;
+        CounterAggregator counting = new CounterAggregator(store, FLUSH_MAX_PENDING, FLUSH_INTERVAL_MILLIS, ROLLUPS,
+                tracked, log);
+        long recovered = counting.replay();
+        if (recovered > 0) {
+            System.out.println("Replayed unflushed increments of " + recovered + " topics");
+            counting.flush();
         }
+        hotTopics = tracked;
+        aggregator = counting;
+    }
+
+    /**
+     * Flush buffered increments, stop accepting new ones and release the store
+     */
+    private static void release() {
+        if (hotTopics != null) {
+            hotTopics.close();
+        }
+        if (aggregator != null) {
+            aggregator.close();
+        }
+        store.close();
+    }
+
+    /**
+     * Aggregator of the started counters, starting them first if nobody did
+     * @return CounterAggregator
+     * @throws IllegalStateException if the counters could not be started
+     */
+    private static CounterAggregator aggregator() throws IllegalStateException {
+        CounterAggregator counting = aggregator;
+        if (counting == null) {
+            service.startLazily();
+            counting = aggregator;
+        }
+        return counting;
     }
 
     /**
      * Reset counters for all tables
      */
     public static void reset() {
-        TableManager.resetCounters();
+        service.startLazily();
+        store.reset(ROLLUPS);
     }
 
     /**
-     * Increment counter for provided topic name
+     * Increment counter for provided topic name.
+     * The increment is buffered and reaches the store with the next flush, @see flush()
      * @param topicName String
      */
     public static void increment(String topicName) {
-        try {
-            long newValue = TableManager.incrementTopicCounter(topicName);
-            System.out.println(topicName + "'s counter updated to: " + newValue);
-        } catch (IOException ioe) {
-            System.err.println("Unable to update counter for: " + topicName);
-            ioe.printStackTrace();
+        aggregator().add(topicName, 1);
+    }
+
+    /**
+     * Whether buffered increments are kept in a write-ahead log and replayed after a crash
+     * @return boolean
+     */
+    public static boolean isLogged() {
+        return WAL_DIR != null;
+    }
+
+    /**
+     * Have the write-ahead log only replay increments committed with @see commitLog(), rather than every one that
+     * was not flushed. For sources that deliver whatever was not acknowledged again after a crash, like kafka,
+     * which acknowledge what they committed. Takes effect when the counters start.
+     * @param logCommits boolean
+     */
+    public static void setLogCommits(boolean logCommits) {
+        TopicCounter.logCommits = logCommits;
+    }
+
+    /**
+     * Make every increment logged so far durable and have replay cover it, @see setLogCommits()
+     * @return long mark of the previous commit, for @see rollbackLog()
+     * @throws IllegalStateException if increments are not logged, or the log does not take commits
+     */
+    public static long commitLog() throws IllegalStateException {
+        return aggregator().commitLog();
+    }
+
+    /**
+     * Roll back to a previous commit of the write-ahead log, e.g. when acknowledging its increments failed
+     * @param mark long as returned by commitLog()
+     * @throws IllegalStateException if increments are not logged, or the log does not take commits
+     */
+    public static void rollbackLog(long mark) throws IllegalStateException {
+        aggregator().rollbackLog(mark);
+    }
+
+    /**
+     * Write all buffered increments to the store right away
+     * @return boolean true if the buffered increments made it to the store
+     */
+    public static boolean flush() {
+        return aggregator().flush();
+    }
+
+    /**
+     * Turn flushing on size and time triggers on or off.
+     * When off, buffered increments only reach the store through @see flush(), e.g. when the caller wants to
+     * flush at a point of its choosing such as before committing consumer offsets.
+     * @param autoFlush boolean
+     */
+    public static void setAutoFlush(boolean autoFlush) {
+        aggregator().setAutoFlush(autoFlush);
+    }
+
+    /**
+     * Flush buffered increments, stop accepting new ones and release the store, e.g. the Hbase connection.
+     * Same as stopping service, which whoever started it does on jvm shutdown.
+     */
+    public static void close() {
+        service.stop(0);
+    }
+
+    /**
+     * Get counter of provided topic name, 0 if it has none yet.
+     * Served from a cache, so the value may be up to counter.cache.ttlMillis old.
+     * @param topicName String
+     * @return long
+     * @throws IOException
+     */
+    public static long getCount(String topicName) throws IOException {
+        service.startLazily();
+        return cache.get(topicName);
+    }
+
+    /**
+     * Get counters of provided topic names, in the same order, 0 for those that have none yet.
+     * Served from a cache, so values may be up to counter.cache.ttlMillis old.
+     * @param topicNames Collection<String>
+     * @return Map<String, Long>
+     * @throws IOException
+     */
+    public static Map<String, Long> getCounts(Collection<String> topicNames) throws IOException {
+        service.startLazily();
+        List<String> names = new ArrayList<>(topicNames);
+        long[] values = cache.get(names);
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            counters.put(names.get(i), values[i]);
         }
+        return counters;
+    }
+
+    /**
+     * Read counters of provided topic names straight from the store with a single batched read,
+     * 0 for those that have none yet
+     * @param topicNames List<String>
+     * @return long[] counters in the order of topicNames
+     * @throws IOException
+     */
+    public static long[] lookup(List<String> topicNames) throws IOException {
+        service.startLazily();
+        return store.get(topicNames);
+    }
+
+    /**
+     * Get one page of counters, @see CounterScan for how to describe it.
+     * Served from a cache, so values may be up to counter.cache.ttlMillis old.
+     * @param spec CounterScan
+     * @return CounterPage
+     * @throws IOException
+     */
+    public static CounterPage getPage(CounterScan spec) throws IOException {
+        service.startLazily();
+        return cache.getPage(spec);
+    }
+
+    /**
+     * Stream counters described by spec through visitor straight from the store, without holding them in memory
+     * @param spec CounterScan
+     * @param visitor CounterVisitor
+     * @return String cursor of the next page if spec's limit was reached, null otherwise
+     * @throws IOException
+     */
+    public static String scan(CounterScan spec, CounterVisitor visitor) throws IOException {
+        service.startLazily();
+        return store.scan(spec, visitor);
+    }
+
+    /**
+     * Get the counts of provided topic name per bucket of provided granularity over [from, to), read with one
+     * bounded scan. Needs counter.rollups, counts are written by the flush so the current bucket may lag.
+     * @param topicName String
+     * @param granularity CounterGranularity
+     * @param from long epoch milliseconds, inclusive
+     * @param to long epoch milliseconds, exclusive
+     * @return SortedMap<Long, Long> counts keyed by bucket start, buckets without messages are left out
+     * @throws IOException
+     */
+    public static SortedMap<Long, Long> getRollups(String topicName, CounterGranularity granularity, long from,
+                                                   long to) throws IOException {
+        service.startLazily();
+        return store.getRollups(topicName, granularity, from, to);
+    }
+
+    /**
+     * Get the most counted topics of the current minute and the minutes - 1 before it, or since this jvm started,
+     * estimated from memory in time independent of the number of topics. Counts may be over by their error, and
+     * only include what this process counted and flushed. With exact, the counts of the returned topics only are
+     * also read back from the store: their totals for a window since start, their minute rollups otherwise (when
+     * counter.rollups is on). Either lags by up to a flush, like the estimates.
+     * @param limit int
+     * @param minutes int 0 for since start
+     * @param exact boolean
+     * @return List<HotTopic> most counted first
+     * @throws IOException
+     * @throws IllegalArgumentException if minutes is negative or larger than counter.hotTopics.windowMinutes
+     * @throws IllegalStateException if hot topics are not tracked
+     */
+    public static List<HotTopic> getHotTopics(int limit, int minutes, boolean exact)
+            throws IOException, IllegalArgumentException, IllegalStateException {
+        service.startLazily();
+        HotTopics hotTopics = TopicCounter.hotTopics;
+        if (hotTopics == null) {
+            throw new IllegalStateException("Hot topics are not tracked, see counter.hotTopics");
+        }
+        List<HotTopic> top = hotTopics.top(limit, minutes);
+        if (!exact || top.isEmpty() || (minutes > 0 && !ROLLUPS)) {
+            return top;
+        }
+        List<HotTopic> backfilled = new ArrayList<>(top.size());
+        if (minutes == 0) {
+            List<String> names = new ArrayList<>(top.size());
+            for (HotTopic topic : top) {
+                names.add(topic.getTopicName());
+            }
+            long[] counts = store.get(names);
+            for (int i = 0; i < counts.length; i++) {
+                backfilled.add(top.get(i).withExact(counts[i]));
+            }
+        } else {
+            long now = System.currentTimeMillis();
+            long minute = CounterGranularity.MINUTE.getMillis();
+            long from = CounterGranularity.MINUTE.bucketStart(now) - (minutes - 1) * minute;
+            for (HotTopic topic : top) {
+                long sum = 0;
+                for (long count : store.getRollups(topic.getTopicName(), CounterGranularity.MINUTE, from, now + 1)
+                        .values()) {
+                    sum += count;
+                }
+                backfilled.add(topic.withExact(sum));
+            }
+        }
+        return backfilled;
     }
 
     /**
@@ -51,12 +491,13 @@ abstract public class TopicCounter {
      */
     public static void getAll() {
         try {
-            Iterator it = TableManager.getAllTopicsCounters().entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry pair = (Map.Entry) it.next();
-                System.out.println(pair.getKey() + " = " + pair.getValue());
-                it.remove(); // avoids a ConcurrentModificationException
-            }
+            scan(new CounterScan(), new CounterVisitor() {
+                @Override
+                public boolean visit(String topicName, long count) {
+                    print(topicName, count);
+                    return true;
+                }
+            });
         } catch (IOException ioe) {
             ioe.printStackTrace();
         }
@@ -67,15 +508,13 @@ abstract public class TopicCounter {
      * @param topicName String
      */
     public static void getForTopic(String topicName) {
+        service.startLazily();
         try {
-            long counter = TableManager.getTopicCounter(topicName);
+            // topics without a record yet come back as 0, the logical thing to show
+            long counter = store.get(Collections.singletonList(topicName))[0];
             print(topicName, counter);
         } catch (IOException ioe) {
             ioe.printStackTrace();
-        } catch (NullPointerException npe) {
-            // NullPointerException would happen if the record for that topicName does not exist yet
-            // Showing 0 as the counter value would be the logical thing
-            print(topicName, Long.valueOf(0));
         }
     }
 
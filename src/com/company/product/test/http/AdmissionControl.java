@@ -0,0 +1,327 @@
+package com.company.product.test.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * class AdmissionControl
+ * Rate limits ingest per topic and per client with token buckets, configured with the http.limit.* properties
+ * and a properties file polled for changes.
+ * @author shoaibi
+ * @version 0.1
+ */
+class AdmissionControl {
+
+    /**
+     * Property prefixes of the topic and client limits
+     */
+    static final String TOPIC_PREFIX = "http.limit.topic.";
+    static final String CLIENT_PREFIX = "http.limit.client.";
+
+    /**
+     * Returned by admit() when the message may go
+     */
+    static final long ADMITTED = 0;
+
+    /**
+     * Rate and burst of a bucket, in the units its time is kept in
+     */
+    static final class Limit {
+        final long intervalNanos;
+        final long burstNanos;
+
+        /**
+         * @param rate double tokens per second
+         * @param burst double tokens a full bucket holds, at least 1
+         */
+        Limit(double rate, double burst) {
+            intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+            burstNanos = (long) (Math.max(1, burst) * intervalNanos);
+        }
+    }
+
+    /**
+     * Limits of one kind of bucket: a default and overrides per name
+     */
+    static final class Limits {
+        final Limit fallback;
+        final Map<String, Limit> named;
+
+        Limits(Limit fallback, Map<String, Limit> named) {
+            this.fallback = fallback;
+            this.named = named;
+        }
+
+        /**
+         * @param name String
+         * @return Limit null if unlimited
+         */
+        Limit of(String name) {
+            if (named.isEmpty()) {
+                return fallback;
+            }
+            Limit limit = named.get(name);
+            return limit == null ? fallback : limit;
+        }
+
+        /**
+         * @return boolean whether nothing is limited
+         */
+        boolean unlimited() {
+            return fallback == null && named.isEmpty();
+        }
+
+        /**
+         * Read limits with provided prefix, a rate of 0 leaves the default or name unlimited
+         * @param properties Properties
+         * @param prefix String
+         * @return Limits
+         * @throws NumberFormatException
+         */
+        static Limits parse(Properties properties, String prefix) throws NumberFormatException {
+            Map<String, Limit> named = new HashMap<>();
+            String ratePrefix = prefix + "rate.";
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith(ratePrefix) && key.length() > ratePrefix.length()) {
+                    Limit limit = limit(properties, key, prefix + "burst." + key.substring(ratePrefix.length()));
+                    if (limit != null) {
+                        named.put(key.substring(ratePrefix.length()), limit);
+                    }
+                }
+            }
+            return new Limits(limit(properties, prefix + "rate", prefix + "burst"), named);
+        }
+
+        /**
+         * @param properties Properties
+         * @param rateKey String
+         * @param burstKey String
+         * @return Limit null if unlimited
+         * @throws NumberFormatException
+         */
+        private static Limit limit(Properties properties, String rateKey, String burstKey)
+                throws NumberFormatException {
+            double rate = Double.parseDouble(properties.getProperty(rateKey, "0").trim());
+            if (rate <= 0) {
+                return null;
+            }
+            String burst = properties.getProperty(burstKey);
+            return new Limit(rate, burst == null ? rate : Double.parseDouble(burst.trim()));
+        }
+    }
+
+    /**
+     * Limits of topics and clients, swapped whole on reload
+     */
+    private volatile Limits topicLimits;
+    private volatile Limits clientLimits;
+
+    /**
+     * Buckets keyed by topic name and by client address, holding the nanoTime they are full again
+     */
+    private final ConcurrentHashMap<String, AtomicLong> topicBuckets;
+    private final ConcurrentHashMap<String, AtomicLong> clientBuckets;
+
+    /**
+     * Most buckets kept of each kind
+     */
+    private final int maxBuckets;
+
+    /**
+     * System properties limits fall back to when the file does not set them
+     */
+    private final Properties defaults;
+
+    /**
+     * Limits file polled for changes, null if there is none
+     */
+    private final File file;
+
+    /**
+     * Last modification time and length of file seen
+     */
+    private long fileModified = -1;
+    private long fileLength = -1;
+
+    /**
+     * Polls file and drops full buckets, null if there is no file
+     */
+    private ScheduledExecutorService reloader = null;
+
+    /**
+     * Load limits and start polling file if there is one
+     * @param defaults Properties e.g. System.getProperties()
+     * @param file File null to only use defaults
+     * @param reloadMillis long how often file is checked for changes
+     * @param maxBuckets int
+     */
+    AdmissionControl(Properties defaults, File file, long reloadMillis, int maxBuckets) {
+        this.defaults = defaults;
+        this.file = file;
+        this.maxBuckets = maxBuckets;
+        topicBuckets = new ConcurrentHashMap<>(16, 0.75f, 64);
+        clientBuckets = new ConcurrentHashMap<>(16, 0.75f, 64);
+        topicLimits = Limits.parse(defaults, TOPIC_PREFIX);
+        clientLimits = Limits.parse(defaults, CLIENT_PREFIX);
+        if (file != null) {
+            reload();
+            reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "admission-reload");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            reloader.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    reload();
+                    long now = System.nanoTime();
+                    sweep(topicBuckets, now, AdmissionControl.this.maxBuckets);
+                    sweep(clientBuckets, now, AdmissionControl.this.maxBuckets);
+                }
+            }, reloadMillis, reloadMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Take a token for a message of provided client to provided topic. Safe to call from any thread.
+     * A message turned away by its topic still took the token of its client.
+     * @param client String
+     * @param topic String
+     * @return long ADMITTED, or nanoseconds until the message would be admitted
+     */
+    long admit(String client, String topic) {
+        Limits clients = clientLimits;
+        Limits topics = topicLimits;
+        if (clients.unlimited() && topics.unlimited()) {
+            return ADMITTED;
+        }
+        long now = System.nanoTime();
+        long wait = take(clientBuckets, client, clients.of(client), now);
+        if (wait == ADMITTED) {
+            wait = take(topicBuckets, topic, topics.of(topic), now);
+        }
+        return wait;
+    }
+
+    /**
+     * Number of buckets currently kept, topics and clients together
+     * @return int
+     */
+    int size() {
+        return topicBuckets.size() + clientBuckets.size();
+    }
+
+    /**
+     * Stop polling the limits file
+     */
+    void close() {
+        if (reloader != null) {
+            reloader.shutdown();
+        }
+    }
+
+    /**
+     * Reload limits if the file changed since it was last read. A file that can not be read or parsed leaves
+     * the current limits in place, a file that went away brings back the defaults.
+     */
+    void reload() {
+        long modified = file.lastModified();
+        long length = file.length();
+        if (modified == fileModified && length == fileLength) {
+            return;
+        }
+        Properties properties = new Properties(defaults);
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            } catch (IOException ioe) {
+                HttpServerHandler.logger.warn("Unable to read limits from {}", file, ioe);
+                return;
+            }
+        }
+        try {
+            Limits topics = Limits.parse(properties, TOPIC_PREFIX);
+            Limits clients = Limits.parse(properties, CLIENT_PREFIX);
+            topicLimits = topics;
+            clientLimits = clients;
+            HttpServerHandler.logger.info("Loaded limits of {} topic(s) and {} client(s) from {}",
+                    topics.named.size(), clients.named.size(), file);
+        } catch (NumberFormatException nfe) {
+            HttpServerHandler.logger.warn("Invalid limits in {}, keeping the current ones", file, nfe);
+        }
+        fileModified = modified;
+        fileLength = length;
+    }
+
+    /**
+     * Take a token from the bucket of provided key
+     * @param buckets ConcurrentHashMap<String, AtomicLong>
+     * @param key String
+     * @param limit Limit null if unlimited
+     * @param now long
+     * @return long ADMITTED, or nanoseconds until a token is back
+     */
+    private long take(ConcurrentHashMap<String, AtomicLong> buckets, String key, Limit limit, long now) {
+        if (limit == null) {
+            return ADMITTED;
+        }
+        AtomicLong full = buckets.get(key);
+        if (full == null) {
+            if (buckets.size() >= maxBuckets) {
+                sweep(buckets, now, maxBuckets * 3 / 4);
+            }
+            AtomicLong fresh = new AtomicLong(now);
+            full = buckets.putIfAbsent(key, fresh);
+            if (full == null) {
+                full = fresh;
+            }
+        }
+        while (true) {
+            long current = full.get();
+            long next = Math.max(current, now) + limit.intervalNanos;
+            long wait = next - now - limit.burstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (full.compareAndSet(current, next)) {
+                return ADMITTED;
+            }
+        }
+    }
+
+    /**
+     * Drop full buckets, and if that was not enough, arbitrary ones until at most provided number are left.
+     * Dropping a bucket that is not full hands its key a fresh burst.
+     * @param buckets ConcurrentHashMap<String, AtomicLong>
+     * @param now long
+     * @param keep int
+     */
+    private static void sweep(ConcurrentHashMap<String, AtomicLong> buckets, long now, int keep) {
+        Iterator<AtomicLong> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().get() <= now) {
+                it.remove();
+            }
+        }
+        it = buckets.values().iterator();
+        while (buckets.size() > keep && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
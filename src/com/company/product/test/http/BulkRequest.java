@@ -0,0 +1,294 @@
+package com.company.product.test.http;
+
+import com.company.product.test.queue.MessageSink;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.CharsetUtil;
+import kafka.common.InvalidTopicException;
+import org.apache.kafka.clients.producer.BufferExhaustedException;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.RecordMetadata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+import static io.netty.handler.codec.http.HttpVersion.*;
+
+/**
+ * class BulkRequest
+ * State of one streaming bulk ingest request.
+ * The body is a list of records separated by newlines, each record being a topic and a message separated by
+ * a tab. Records are decoded as body chunks arrive, collected into batches and each batch is handed to
+ * the @see MessageSink from the executor. Once the body ended and every record was either acknowledged
+ * or rejected the request is answered with a summary like {"accepted":10,"rejected":0}
+ * Every record is rate limited on its own, records turned away count as rejected and the summary then comes
+ * with a Retry-After telling when the last of them would have been admitted.
+ * @author shoaibi
+ * @version 0.1
+ */
+class BulkRequest {
+
+    /**
+     * Where the summary goes once everything is done
+     */
+    private final ResponseSequencer.Slot slot;
+
+    /**
+     * Where records are sent
+     */
+    private final MessageSink sink;
+
+    /**
+     * Executor batches are sent from
+     */
+    private final Executor executor;
+
+    /**
+     * Number of records per batch
+     */
+    private final int batchSize;
+
+    /**
+     * Longest record accepted, in bytes
+     */
+    private final int maxRecordLength;
+
+    /**
+     * Rate limits records are subject to, and the client they are charged to
+     */
+    private final AdmissionControl admission;
+    private final String client;
+
+    /**
+     * Longest a record turned away by rate limits would have had to wait, in nanoseconds
+     */
+    private volatile long throttledNanos = 0;
+
+    /**
+     * Bytes of a record split across chunks, only touched from the event loop
+     */
+    private final ByteBuf partial;
+
+    /**
+     * Set while skipping the rest of a record that was too long
+     */
+    private boolean discarding = false;
+
+    /**
+     * Topics and messages of the batch being filled, only touched from the event loop
+     */
+    private List<String> topics;
+    private List<String> messages;
+
+    /**
+     * Records not yet acknowledged or rejected, plus one for as long as the body has not ended
+     */
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    /**
+     * Outcome counters
+     */
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    /**
+     * @param slot ResponseSequencer.Slot
+     * @param alloc ByteBufAllocator allocator of the connection, used for records split across chunks
+     * @param sink MessageSink
+     * @param executor Executor
+     * @param batchSize int
+     * @param maxRecordLength int
+     * @param admission AdmissionControl
+     * @param client String
+     */
+    BulkRequest(ResponseSequencer.Slot slot, ByteBufAllocator alloc, MessageSink sink, Executor executor,
+                int batchSize, int maxRecordLength, AdmissionControl admission, String client) {
+        this.slot = slot;
+        this.partial = alloc.buffer(0);
+        this.sink = sink;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.maxRecordLength = maxRecordLength;
+        this.admission = admission;
+        this.client = client;
+        newBatch();
+    }
+
+    /**
+     * Decode all complete records from a body chunk, keeping a trailing partial record for the next chunk
+     * @param content ByteBuf
+     */
+    void feed(ByteBuf content) {
+        while (content.isReadable()) {
+            int eol = content.indexOf(content.readerIndex(), content.writerIndex(), (byte) '\n');
+            int end = eol < 0 ? content.writerIndex() : eol;
+            int length = end - content.readerIndex();
+
+            if (discarding || partial.readableBytes() + length > maxRecordLength) {
+                if (!discarding) {
+                    discarding = true;
+                    partial.clear();
+                    rejected.incrementAndGet();
+                }
+                content.readerIndex(end);
+            } else if (eol >= 0 && !partial.isReadable()) {
+                // the usual case, the whole record is inside this chunk
+                record(content, content.readerIndex(), length);
+                content.readerIndex(end);
+            } else {
+                partial.writeBytes(content, length);
+            }
+
+            if (eol >= 0) {
+                content.skipBytes(1);
+                if (partial.isReadable()) {
+                    record(partial, partial.readerIndex(), partial.readableBytes());
+                    partial.clear();
+                }
+                discarding = false;
+            }
+        }
+    }
+
+    /**
+     * The body ended: decode a last record not followed by a newline, send the last batch and
+     * respond as soon as every record is accounted for
+     */
+    void finish() {
+        if (partial.isReadable() && !discarding) {
+            record(partial, partial.readerIndex(), partial.readableBytes());
+        }
+        partial.release();
+        sendBatch();
+        done();
+    }
+
+    /**
+     * The connection went away before the body ended, nobody is waiting for an answer anymore
+     */
+    void abort() {
+        partial.release();
+    }
+
+    /**
+     * Split a record into topic and message and add it to the current batch
+     * @param buf ByteBuf
+     * @param index int
+     * @param length int
+     */
+    private void record(ByteBuf buf, int index, int length) {
+        if (length > 0 && buf.getByte(index + length - 1) == '\r') {
+            length--;
+        }
+        if (length == 0) {
+            // blank lines are just skipped
+            return;
+        }
+        int tab = buf.indexOf(index, index + length, (byte) '\t');
+        if (tab <= index) {
+            rejected.incrementAndGet();
+            return;
+        }
+        String topic = buf.toString(index, tab - index, CharsetUtil.UTF_8);
+        long wait = admission.admit(client, topic);
+        if (wait != AdmissionControl.ADMITTED) {
+            HttpServerHandler.throttled.mark();
+            throttledNanos = Math.max(throttledNanos, wait);
+            rejected.incrementAndGet();
+            return;
+        }
+        topics.add(topic);
+        messages.add(buf.toString(tab + 1, index + length - tab - 1, CharsetUtil.UTF_8));
+        if (topics.size() >= batchSize) {
+            sendBatch();
+        }
+    }
+
+    /**
+     * Hand the current batch to the executor and start a new one
+     */
+    private void sendBatch() {
+        final List<String> batchTopics = topics;
+        final List<String> batchMessages = messages;
+        final int size = batchTopics.size();
+        if (size == 0) {
+            return;
+        }
+        newBatch();
+        pending.addAndGet(size);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < size; i++) {
+                        send(batchTopics.get(i), batchMessages.get(i));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            rejected.addAndGet(size);
+            pending.addAndGet(-size);
+        }
+    }
+
+    /**
+     * Send one record and account for its outcome
+     * @param topic String
+     * @param message String
+     */
+    private void send(String topic, String message) {
+        try {
+            sink.send(topic, message, new Callback() {
+                @Override
+                public void onCompletion(RecordMetadata metadata, Exception exception) {
+                    if (exception == null) {
+                        accepted.incrementAndGet();
+                    } else {
+                        rejected.incrementAndGet();
+                    }
+                    done();
+                }
+            });
+        } catch (InvalidTopicException | BufferExhaustedException e) {
+            rejected.incrementAndGet();
+            done();
+        } catch (RuntimeException re) {
+            HttpServerHandler.logger.warn("Unable to send bulk record to {}", topic, re);
+            rejected.incrementAndGet();
+            done();
+        }
+    }
+
+    /**
+     * One record (or the body) is accounted for, respond if it was the last one
+     */
+    private void done() {
+        if (pending.decrementAndGet() == 0) {
+            String summary = "{\"accepted\":" + accepted.get() + ",\"rejected\":" + rejected.get() + "}";
+            FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK,
+                    Unpooled.copiedBuffer(summary, CharsetUtil.UTF_8));
+            response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "application/json");
+            if (throttledNanos > 0) {
+                response.headers().set(HttpHeaders.Names.RETRY_AFTER,
+                        HttpServerHandler.retryAfterSeconds(throttledNanos));
+            }
+            slot.complete(response);
+        }
+    }
+
+    /**
+     * Start filling a new batch
+     */
+    private void newBatch() {
+        topics = new ArrayList<>(batchSize);
+        messages = new ArrayList<>(batchSize);
+    }
+}
@@ -0,0 +1,223 @@
+package com.company.product.test.http;
+
+import com.company.product.test.db.CounterGranularity;
+import com.company.product.test.db.CounterPage;
+import com.company.product.test.db.CounterScan;
+import com.company.product.test.db.TopicCounter;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.CharsetUtil;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+import static io.netty.handler.codec.http.HttpVersion.*;
+
+/**
+ * class CounterQuery
+ * Answers counter queries with JSON, reading through the @see TopicCounter cache:
+ * GET /counters/{topic}              {"topic":"a","count":3}
+ * GET /counters/{topic}?granularity=minute&from=0&to=180000
+ *                                    {"topic":"a","granularity":"minute","buckets":{"0":2,"120000":1}}
+ *                                    from and to are epoch milliseconds, to defaults to now and from to
+ *                                    DEFAULT_BUCKETS buckets before it, empty buckets are left out
+ * GET /counters?topic=a&topic=b      {"a":3,"b":0}
+ * GET /counters?prefix=a&limit=2     {"counters":{"a":3,"ab":1},"next":"ab"}
+ * GET /counters?cursor=ab&limit=2    the page after the previous one, "next" is null on the last page
+ * Reads may block on Hbase, so execute() must not run on an event loop.
+ * @author shoaibi
+ * @version 0.1
+ */
+class CounterQuery {
+
+    /**
+     * Path (and path prefix) of counter queries
+     */
+    static final String PATH = "/counters";
+
+    /**
+     * Topics per page when listing counters, unless asked otherwise
+     */
+    static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * Most topics per page a listing may ask for
+     */
+    static final int MAX_PAGE_SIZE = 10000;
+
+    /**
+     * Buckets returned by a rollup query without from
+     */
+    static final int DEFAULT_BUCKETS = 60;
+
+    /**
+     * Most buckets a rollup query may span
+     */
+    static final int MAX_BUCKETS = 10000;
+
+    /**
+     * Whether uri is a counter query
+     * @param uri String
+     * @return boolean
+     */
+    static boolean matches(String uri) {
+        return QueryParser.isPath(uri, PATH) || uri.startsWith(PATH + "/");
+    }
+
+    /**
+     * Run the query of uri and build its response
+     * @param uri String
+     * @return FullHttpResponse
+     */
+    static FullHttpResponse execute(String uri) {
+        QueryStringDecoder queryStringDecoder = new QueryStringDecoder(uri);
+        String path = queryStringDecoder.path();
+        Map<String, List<String>> params = queryStringDecoder.parameters();
+        List<String> topics = params.get("topic");
+        StringBuilder json = new StringBuilder();
+        try {
+            if (path.length() > PATH.length() + 1) {
+                String topic = QueryStringDecoder.decodeComponent(path.substring(PATH.length() + 1));
+                json.append("{\"topic\":");
+                appendString(json, topic);
+                String granularity = QueryParser.first(params, "granularity");
+                if (granularity == null) {
+                    json.append(",\"count\":").append(TopicCounter.getCount(topic)).append('}');
+                } else {
+                    appendRollups(json, topic, CounterGranularity.parse(granularity), QueryParser.first(params, "from"),
+                            QueryParser.first(params, "to"));
+                }
+            } else if (topics != null) {
+                appendCounters(json, TopicCounter.getCounts(topics));
+            } else {
+                CounterScan spec = new CounterScan()
+                        .setPrefix(QueryParser.first(params, "prefix"))
+                        .setCursor(QueryParser.first(params, "cursor"))
+                        .setLimit(pageSize(QueryParser.first(params, "limit")));
+                CounterPage page = TopicCounter.getPage(spec);
+                json.append("{\"counters\":");
+                appendCounters(json, page.getCounters());
+                json.append(",\"next\":");
+                if (page.getNext() == null) {
+                    json.append("null");
+                } else {
+                    appendString(json, page.getNext());
+                }
+                json.append('}');
+            }
+        } catch (IOException ioe) {
+            HttpServerHandler.logger.warn("Unable to read counters for {}", uri, ioe);
+            return HttpServerHandler.unavailable();
+        } catch (IllegalArgumentException iae) {
+            // NumberFormatException included, bad page size, granularity or time range
+            return new DefaultFullHttpResponse(HTTP_1_1, BAD_REQUEST);
+        } catch (RuntimeException re) {
+            HttpServerHandler.logger.warn("Unable to answer counter query {}", uri, re);
+            return new DefaultFullHttpResponse(HTTP_1_1, INTERNAL_SERVER_ERROR);
+        }
+        return json(json);
+    }
+
+    /**
+     * Append the granularity and buckets of a rollup query of topic over [from, to)
+     * @param json StringBuilder
+     * @param topic String
+     * @param granularity CounterGranularity
+     * @param from String null for DEFAULT_BUCKETS buckets before to
+     * @param to String null for now
+     * @throws IOException
+     * @throws IllegalArgumentException if the range is empty or spans more than MAX_BUCKETS buckets
+     */
+    private static void appendRollups(StringBuilder json, String topic, CounterGranularity granularity,
+                                      String from, String to) throws IOException, IllegalArgumentException {
+        long toMillis = to == null ? System.currentTimeMillis() : Long.parseLong(to);
+        long fromMillis = from == null ? toMillis - DEFAULT_BUCKETS * granularity.getMillis() : Long.parseLong(from);
+        if (fromMillis >= toMillis || (toMillis - fromMillis) / granularity.getMillis() > MAX_BUCKETS) {
+            throw new IllegalArgumentException("Bad time range: " + from + " - " + to);
+        }
+        json.append(",\"granularity\":\"").append(granularity.name().toLowerCase()).append("\",\"buckets\":{");
+        boolean first = true;
+        for (Map.Entry<Long, Long> bucket : TopicCounter.getRollups(topic, granularity, fromMillis, toMillis)
+                .entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(bucket.getKey()).append("\":").append(bucket.getValue());
+        }
+        json.append("}}");
+    }
+
+    /**
+     * Page size asked for, capped to MAX_PAGE_SIZE
+     * @param limit String
+     * @return int
+     * @throws NumberFormatException
+     */
+    private static int pageSize(String limit) throws NumberFormatException {
+        if (limit == null) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        int size = Integer.parseInt(limit);
+        if (size <= 0) {
+            throw new NumberFormatException("Page size must be positive: " + limit);
+        }
+        return Math.min(size, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Build a 200 response carrying json
+     * @param json CharSequence
+     * @return FullHttpResponse
+     */
+    static FullHttpResponse json(CharSequence json) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK,
+                Unpooled.copiedBuffer(json, CharsetUtil.UTF_8));
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "application/json");
+        return response;
+    }
+
+    /**
+     * Append counters as a JSON object of topic names and counts
+     * @param json StringBuilder
+     * @param counters Map<String, Long>
+     */
+    static void appendCounters(StringBuilder json, Map<String, Long> counters) {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendString(json, counter.getKey());
+            json.append(':').append(counter.getValue());
+        }
+        json.append('}');
+    }
+
+    /**
+     * Append value as a quoted and escaped JSON string
+     * @param json StringBuilder
+     * @param value String
+     */
+    static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,63 @@
+package com.company.product.test.http;
+
+import com.company.product.test.lifecycle.Lifecycle;
+import com.company.product.test.lifecycle.Service;
+import io.netty.handler.codec.http.FullHttpResponse;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+
+/**
+ * class HealthQuery
+ * Answers GET /health with the state of every service requests depend on, 200 once all of them are ready
+ * and 503 until then, so load balancers only send traffic to a server that can take it:
+ * {"ready":false,"services":{"counters":{"state":"READY"},"producer":{"state":"FAILED","error":"..."}}}
+ * @author shoaibi
+ * @version 0.1
+ */
+class HealthQuery {
+
+    /**
+     * Path of health queries
+     */
+    static final String PATH = "/health";
+
+    /**
+     * Whether uri is a health query
+     * @param uri String
+     * @return boolean
+     */
+    static boolean matches(String uri) {
+        return QueryParser.isPath(uri, PATH);
+    }
+
+    /**
+     * Build the response describing provided lifecycle
+     * @param lifecycle Lifecycle
+     * @return FullHttpResponse
+     */
+    static FullHttpResponse execute(Lifecycle lifecycle) {
+        boolean ready = true;
+        StringBuilder services = new StringBuilder("{");
+        for (Service service : lifecycle.getServices()) {
+            if (services.length() > 1) {
+                services.append(',');
+            }
+            ready &= service.isReady();
+            CounterQuery.appendString(services, service.getName());
+            services.append(":{\"state\":");
+            CounterQuery.appendString(services, service.getState().name());
+            Throwable failure = service.getFailure();
+            if (failure != null) {
+                services.append(",\"error\":");
+                CounterQuery.appendString(services, failure.toString());
+            }
+            services.append('}');
+        }
+        services.append('}');
+        FullHttpResponse response = CounterQuery.json("{\"ready\":" + ready + ",\"services\":" + services + "}");
+        if (!ready) {
+            response.setStatus(SERVICE_UNAVAILABLE);
+        }
+        return response;
+    }
+}
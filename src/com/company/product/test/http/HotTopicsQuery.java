@@ -0,0 +1,94 @@
+package com.company.product.test.http;
+
+import com.company.product.test.db.HotTopic;
+import com.company.product.test.db.TopicCounter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+import static io.netty.handler.codec.http.HttpVersion.*;
+
+/**
+ * class HotTopicsQuery
+ * Answers queries for the most counted topics with JSON, estimated in memory by @see TopicCounter.getHotTopics():
+ * GET /topics/hot?limit=2            {"topics":[{"topic":"a","count":120,"error":0},{"topic":"b","count":7,"error":2}]}
+ * GET /topics/hot?minutes=5          the same over the current minute and the 4 before it
+ * GET /topics/hot?limit=2&exact=true every topic also gets its "exact" count read back from the store
+ * count may be over by up to error. Only what went through the counters of this process is seen, so this needs
+ * the embedded pipeline and is answered 404 otherwise, MessageConsumer shows its hot topics over JMX instead.
+ * With exact, reads may block on Hbase, so execute() must not run on an event loop.
+ * @author shoaibi
+ * @version 0.1
+ */
+class HotTopicsQuery {
+
+    /**
+     * Path of hot topics queries
+     */
+    static final String PATH = "/topics/hot";
+
+    /**
+     * Topics listed unless asked otherwise, and the most that may be asked for
+     */
+    static final int DEFAULT_LIMIT = 10;
+    static final int MAX_LIMIT = 1000;
+
+    /**
+     * Whether uri is a hot topics query
+     * @param uri String
+     * @return boolean
+     */
+    static boolean matches(String uri) {
+        return QueryParser.isPath(uri, PATH);
+    }
+
+    /**
+     * Run the query of uri and build its response
+     * @param uri String
+     * @return FullHttpResponse
+     */
+    static FullHttpResponse execute(String uri) {
+        Map<String, List<String>> params = new QueryStringDecoder(uri).parameters();
+        StringBuilder json = new StringBuilder("{\"topics\":[");
+        try {
+            String limit = QueryParser.first(params, "limit");
+            String minutes = QueryParser.first(params, "minutes");
+            boolean exact = Boolean.parseBoolean(QueryParser.first(params, "exact"));
+            int topics = limit == null ? DEFAULT_LIMIT : Integer.parseInt(limit);
+            if (topics <= 0) {
+                throw new NumberFormatException("Limit must be positive: " + limit);
+            }
+            boolean first = true;
+            for (HotTopic topic : TopicCounter.getHotTopics(Math.min(topics, MAX_LIMIT),
+                    minutes == null ? 0 : Integer.parseInt(minutes), exact)) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append("{\"topic\":");
+                CounterQuery.appendString(json, topic.getTopicName());
+                json.append(",\"count\":").append(topic.getCount()).append(",\"error\":").append(topic.getError());
+                if (topic.getExact() != null) {
+                    json.append(",\"exact\":").append(topic.getExact());
+                }
+                json.append('}');
+            }
+            json.append("]}");
+        } catch (IOException ioe) {
+            HttpServerHandler.logger.warn("Unable to read exact counts of hot topics", ioe);
+            return HttpServerHandler.unavailable();
+        } catch (IllegalArgumentException iae) {
+            // NumberFormatException included, bad limit or window
+            return new DefaultFullHttpResponse(HTTP_1_1, BAD_REQUEST);
+        } catch (IllegalStateException ise) {
+            // not tracked
+            return new DefaultFullHttpResponse(HTTP_1_1, NOT_FOUND);
+        }
+        return CounterQuery.json(json);
+    }
+}
@@ -1,22 +1,99 @@
 package com.company.product.test.http;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.internal.PlatformDependent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public final class HttpServer {
 
+    /**
+     * Seconds a connection may sit idle (nothing read or written) before it is closed
+     */
+    static final int IDLE_TIMEOUT_SECONDS = Integer.getInteger("http.idleTimeoutSeconds", 60);
+
+    /**
+     * Transport to use, "nio" or "epoll". epoll falls back to nio where the native library is not available.
+     */
+    static final String TRANSPORT = System.getProperty("http.transport", "nio");
+
+    /**
+     * Threads accepting connections
+     */
+    static final int BOSS_THREADS = Integer.getInteger("http.bossThreads", 1);
+
+    /**
+     * Threads doing network I/O, 0 lets netty pick (twice the number of cores)
+     */
+    static final int WORKER_THREADS = Integer.getInteger("http.workerThreads", 0);
+
+    /**
+     * Length of the queue of connections waiting to be accepted
+     */
+    static final int BACKLOG = Integer.getInteger("http.backlog", 1024);
+
+    /**
+     * Whether to set SO_REUSEPORT on the listening socket, epoll only
+     */
+    static final boolean REUSE_PORT = Boolean.getBoolean("http.reusePort");
+
+    /**
+     * Number of sockets bound to the port, each accepting on its own boss thread. Needs epoll and reusePort.
+     */
+    static final int ACCEPTORS = Integer.getInteger("http.acceptors", 1);
+
+    /**
+     * Whether buffers come from a pooled direct memory allocator instead of being allocated per use
+     */
+    static final boolean POOLED_BUFFERS = Boolean.parseBoolean(System.getProperty("http.pooledBuffers", "true"));
+
+    /**
+     * Whether accepted connections are logged
+     */
+    static final boolean LOG_CONNECTIONS = Boolean.getBoolean("http.logConnections");
+
+    /**
+     * How long stopping waits for requests being handled to finish, in milliseconds
+     */
+    static final long SHUTDOWN_TIMEOUT_MILLIS = Long.getLong("http.shutdownTimeoutMillis", 10000);
+
     private int port;
 
+    /**
+     * Event loops and listening channels, set by run()
+     */
+    private volatile EventLoopGroup bossGroup;
+    private volatile EventLoopGroup workerGroup;
+    private final List<Channel> channels = new ArrayList<>();
+
+    /**
+     * Set once stop() ran
+     */
+    private boolean stopped = false;
+
     HttpServer(int port) {
         this.port = port;
     }
@@ -31,32 +108,138 @@ public final class HttpServer {
         new HttpServer(port).run();
     }
 
+    /**
+     * Start the services requests depend on in the background, listen right away and block until the server
+     * is stopped. Until the services are ready /health and the requests needing them are answered with 503.
+     * @throws Exception
+     */
     public void run() throws Exception {
+        HttpServerHandler.lifecycle.startAsync();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        }, "http-shutdown"));
+
+        boolean epoll = useEpoll();
+        int acceptors = epoll && REUSE_PORT ? Math.max(1, ACCEPTORS) : 1;
+        int bossThreads = Math.max(BOSS_THREADS, acceptors);
+        ByteBufAllocator allocator = POOLED_BUFFERS
+                ? new PooledByteBufAllocator(true)
+                : UnpooledByteBufAllocator.DEFAULT;
+
         // Configure the server.
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        Class<? extends ServerChannel> channelClass;
+        if (epoll) {
+            bossGroup = new EpollEventLoopGroup(bossThreads);
+            workerGroup = new EpollEventLoopGroup(WORKER_THREADS);
+            channelClass = EpollServerSocketChannel.class;
+        } else {
+            bossGroup = new NioEventLoopGroup(bossThreads);
+            workerGroup = new NioEventLoopGroup(WORKER_THREADS);
+            channelClass = NioServerSocketChannel.class;
+        }
         try {
             ServerBootstrap b = new ServerBootstrap();
             b.group(bossGroup, workerGroup)
-             .channel(NioServerSocketChannel.class)
-             .handler(new LoggingHandler(LogLevel.INFO))
+             .channel(channelClass)
+             .option(ChannelOption.SO_BACKLOG, BACKLOG)
+             .option(ChannelOption.SO_REUSEADDR, true)
+             .option(ChannelOption.ALLOCATOR, allocator)
+             .childOption(ChannelOption.ALLOCATOR, allocator)
+             .childOption(ChannelOption.TCP_NODELAY, true)
              .childHandler(new ChannelInitializer<SocketChannel>() {
                  @Override
                  public void initChannel(SocketChannel ch) throws Exception {
                      ch.pipeline()
+                       .addLast(new IdleStateHandler(0, 0, IDLE_TIMEOUT_SECONDS))
                        .addLast(new HttpRequestDecoder())
-                       .addLast(new HttpObjectAggregator(1048576))
                        .addLast(new HttpResponseEncoder())
                        .addLast(new HttpServerHandler());
                  }
              });
+            if (epoll && REUSE_PORT) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            if (LOG_CONNECTIONS) {
+                b.handler(new LoggingHandler(LogLevel.INFO));
+            }
 
-            Channel ch = b.bind(this.port).sync().channel();
+            // with SO_REUSEPORT every bind gets its own socket, and the kernel spreads connections across them
+            for (int i = 0; i < acceptors; i++) {
+                Channel channel = b.bind(this.port).sync().channel();
+                synchronized (this) {
+                    channels.add(channel);
+                }
+            }
+            System.out.println("Listening with " + (epoll ? "epoll" : "nio") + " transport and " + acceptors
+                    + " acceptor(s)");
             System.out.println("Open your web browser and navigate to http://127.0.0.1:" + this.port + '/');
-            ch.closeFuture().sync();
+            for (Channel ch : new ArrayList<>(channels)) {
+                ch.closeFuture().sync();
+            }
         } finally {
-            bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
+            stop();
+        }
+    }
+
+    /**
+     * Stop in order, each step relying on the ones after it: stop accepting connections, let requests already
+     * handed to the ingest and query threads finish, stop the services (the producer sends what it still batches,
+     * the embedded pipeline counts what it still queues, the counters flush), and only then stop the event loops
+     * so the responses of all of those still get written. Called on jvm shutdown, later calls do nothing.
+     */
+    synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        for (Channel ch : channels) {
+            ch.close().awaitUninterruptibly();
+        }
+        drain(HttpServerHandler.ingestExecutor);
+        drain(HttpServerHandler.queryExecutor);
+        HttpServerHandler.lifecycle.stop();
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully().awaitUninterruptibly(SHUTDOWN_TIMEOUT_MILLIS);
+            workerGroup.shutdownGracefully().awaitUninterruptibly(SHUTDOWN_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Stop taking tasks and wait for the queued ones to run
+     * @param executor ExecutorService
+     */
+    private static void drain(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                System.err.println("Requests still being handled after " + SHUTDOWN_TIMEOUT_MILLIS
+                        + " ms, stopping anyway");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Whether the native epoll transport was asked for and can actually be used
+     * @return boolean
+     */
+    private static boolean useEpoll() {
+        if (!"epoll".equalsIgnoreCase(TRANSPORT)) {
+            return false;
+        }
+        if (!Epoll.isAvailable()) {
+            System.err.println("epoll transport is not available, falling back to nio: " + Epoll.unavailabilityCause());
+            return false;
+        }
+        if (!PlatformDependent.hasUnsafe()) {
+            // the native transport manages its memory through sun.misc.Unsafe
+            System.err.println("epoll transport needs sun.misc.Unsafe which is not accessible, falling back to nio");
+            return false;
         }
+        return true;
     }
 }
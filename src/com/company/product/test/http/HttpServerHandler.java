@@ -15,26 +15,228 @@
  */
 package com.company.product.test.http;
 
-import com.company.product.test.queue.MessageProducer;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFutureListener;
+import com.company.product.test.db.TopicCounter;
+import com.company.product.test.lifecycle.Lifecycle;
+import com.company.product.test.metrics.SampledTimer;
+import com.company.product.test.queue.EmbeddedPipeline;
+import com.company.product.test.queue.KafkaMessageSink;
+import com.company.product.test.queue.MessageSink;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
-import io.netty.handler.codec.http.QueryStringDecoder;
-import io.netty.util.ReferenceCountUtil;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.concurrent.ImmediateExecutor;
 import kafka.common.InvalidTopicException;
+import org.apache.kafka.clients.producer.BufferExhaustedException;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.List;
-import java.util.Map;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.*;
 import static io.netty.handler.codec.http.HttpVersion.*;
 
 public class HttpServerHandler extends SimpleChannelInboundHandler<Object> {
 
+    /**
+     * Number of threads handing messages to the producer
+     */
+    static final int INGEST_THREADS = Integer.getInteger("http.ingest.threads", 4);
+
+    /**
+     * Maximum number of requests waiting for an ingest thread before new ones are turned away with 503
+     */
+    static final int INGEST_QUEUE_SIZE = Integer.getInteger("http.ingest.queueSize", 10000);
+
+    /**
+     * Seconds clients are asked to wait before retrying a request turned away with 503
+     */
+    static final int RETRY_AFTER_SECONDS = Integer.getInteger("http.retryAfterSeconds", 1);
+
+    /**
+     * Maximum number of pipelined requests per connection waiting for a response before reading is paused
+     */
+    static final int MAX_PIPELINED = Integer.getInteger("http.maxPipelined", 64);
+
+    /**
+     * Path of the streaming bulk ingest endpoint, @see BulkRequest
+     */
+    static final String BULK_PATH = "/bulk";
+
+    /**
+     * Number of bulk records handed to the producer per batch
+     */
+    static final int BULK_BATCH_SIZE = Integer.getInteger("http.bulk.batchSize", 500);
+
+    /**
+     * Longest bulk record accepted, in bytes
+     */
+    static final int BULK_MAX_RECORD_LENGTH = Integer.getInteger("http.bulk.maxRecordLength", 1048576);
+
+    /**
+     * Number of threads answering counter queries
+     */
+    static final int QUERY_THREADS = Integer.getInteger("http.query.threads", 2);
+
+    /**
+     * Maximum number of counter queries waiting for a query thread before new ones are turned away with 503
+     */
+    static final int QUERY_QUEUE_SIZE = Integer.getInteger("http.query.queueSize", 1000);
+
+    /**
+     * Properties file of per topic and per client rate limits polled for changes, @see AdmissionControl
+     */
+    static final String LIMIT_FILE = System.getProperty("http.limit.file");
+
+    /**
+     * How often the limits file is checked for changes, in milliseconds
+     */
+    static final long LIMIT_RELOAD_MILLIS = Long.getLong("http.limit.reloadMillis", 5000);
+
+    /**
+     * Most rate limited topics and clients remembered, each
+     */
+    static final int LIMIT_MAX_BUCKETS = Integer.getInteger("http.limit.maxBuckets", 100000);
+
+    /**
+     * Where accepted messages go: kafka, or embedded to count them in process without kafka and zookeeper
+     */
+    static final String PIPELINE_MODE = System.getProperty("pipeline.mode", "kafka");
+
+    /**
+     * Messages the embedded pipeline queues before new ones are turned away with 503
+     */
+    static final int PIPELINE_RING_SIZE = Integer.getInteger("pipeline.ringSize", 65536);
+
+    /**
+     * Threads counting messages of the embedded pipeline
+     */
+    static final int PIPELINE_WORKERS = Integer.getInteger("pipeline.workers", 2);
+
+    /**
+     * Sink picked with PIPELINE_MODE
+     */
+    static final MessageSink sink = newSink(PIPELINE_MODE);
+
+    /**
+     * Services requests depend on: the counters, read by queries, and whatever sink sends through.
+     * Started and stopped by @see HttpServer, requests needing a service that is not ready are answered with 503.
+     */
+    static final Lifecycle lifecycle = new Lifecycle().add(TopicCounter.service).add(sink.getService());
+
+    /**
+     * Bounded pool shared by all connections so zookeeper and kafka latency never stall the event loop
+     */
+    static final ThreadPoolExecutor ingestExecutor = newBoundedExecutor("http-ingest", INGEST_THREADS,
+            INGEST_QUEUE_SIZE);
+
+    /**
+     * Bounded pool for counter queries, kept apart from ingestExecutor so slow Hbase reads never hold up ingest
+     */
+    static final ThreadPoolExecutor queryExecutor = newBoundedExecutor("http-query", QUERY_THREADS,
+            QUERY_QUEUE_SIZE);
+
+    static final Logger logger = LoggerFactory.getLogger(HttpServerHandler.class);
+
+    /**
+     * Rate limits of messages per topic and per client, shared by all connections
+     */
+    static final AdmissionControl admission = new AdmissionControl(System.getProperties(),
+            LIMIT_FILE == null ? null : new File(LIMIT_FILE), LIMIT_RELOAD_MILLIS, LIMIT_MAX_BUCKETS);
+
+    /**
+     * Time from reading a request until its response is ready, for every kind of request
+     */
+    static final SampledTimer requests = new SampledTimer(HttpServerHandler.class, "requests", "requests");
+
+    /**
+     * Requests turned away because we were overloaded, and other requests that failed on either side
+     */
+    static final Meter rejections = Metrics.newMeter(HttpServerHandler.class, "rejections", "responses",
+            TimeUnit.SECONDS);
+    static final Meter clientErrors = Metrics.newMeter(HttpServerHandler.class, "client-errors", "responses",
+            TimeUnit.SECONDS);
+    static final Meter serverErrors = Metrics.newMeter(HttpServerHandler.class, "server-errors", "responses",
+            TimeUnit.SECONDS);
+
+    /**
+     * Messages turned away by the rate limits, answered 429 on their own or counted as rejected in a bulk request
+     */
+    static final Meter throttled = Metrics.newMeter(HttpServerHandler.class, "throttled", "messages",
+            TimeUnit.SECONDS);
+
+    /**
+     * Where messages of this connection go, sink unless told otherwise
+     */
+    private final MessageSink messageSink;
+
+    /**
+     * Address of the client on the other end of this connection, the key of its rate limit
+     */
+    private String client;
+
+    /**
+     * Keeps responses of this connection in request order
+     */
+    private ResponseSequencer sequencer;
+
+    /**
+     * Bulk request whose body is currently being received, if any
+     */
+    private BulkRequest bulk;
+
+    /**
+     * Query string parser reused for every request of this connection
+     */
+    private final QueryParser queryParser = new QueryParser();
+
+    public HttpServerHandler() {
+        this(sink);
+    }
+
+    /**
+     * @param messageSink MessageSink where messages go instead of sink, e.g. a stub when benchmarking
+     */
+    HttpServerHandler(MessageSink messageSink) {
+        this.messageSink = messageSink;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        sequencer = new ResponseSequencer(ctx, MAX_PIPELINED);
+        client = clientOf(ctx.channel().remoteAddress());
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (bulk != null) {
+            bulk.abort();
+            bulk = null;
+        }
+        super.channelInactive(ctx);
+    }
+
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) {
         ctx.flush();
@@ -46,68 +248,312 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<Object> {
         messageReceived(ctx, msg);
     }
 
+    /**
+     * Requests arrive as a HttpRequest followed by its body in HttpContent chunks.
+     * Bodies are only of interest to bulk requests, which decode them chunk by chunk.
+     * @param ctx ChannelHandlerContext
+     * @param msg Object
+     */
     protected void messageReceived(ChannelHandlerContext ctx, Object msg) {
-        FullHttpResponse response = null;
-        try {
-            if (msg instanceof HttpRequest) {
-                HttpRequest request = (HttpRequest) msg;
+        if (msg instanceof HttpRequest) {
+            requestReceived(ctx, (HttpRequest) msg);
+        }
+        if (msg instanceof HttpContent && bulk != null) {
+            bulk.feed(((HttpContent) msg).content());
+            if (msg instanceof LastHttpContent) {
+                bulk.finish();
+                bulk = null;
+            }
+        }
+    }
 
-                QueryStringDecoder queryStringDecoder = new QueryStringDecoder(request.getUri());
-                Map<String, List<String>> params = queryStringDecoder.parameters();
-                validateQueryString(params);
-                compileAndSendMessage(params);
+    /**
+     * Parse and validate the request on the event loop, then hand the actual send to ingestExecutor.
+     * The response is written once the producer reports back.
+     * @param ctx ChannelHandlerContext
+     * @param request HttpRequest
+     */
+    private void requestReceived(ChannelHandlerContext ctx, HttpRequest request) {
+        final ResponseSequencer.Slot slot = sequencer.next(HttpHeaders.isKeepAlive(request));
+        if (slot == null) {
+            // client asked us to close after an earlier request, anything pipelined behind it is dropped
+            return;
+        }
+        if (request.getDecoderResult().isFailure()) {
+            respond(slot, BAD_REQUEST);
+            return;
+        }
 
-                // no need to provide a response, we did what was expected of us.
-                response = new DefaultFullHttpResponse(HTTP_1_1, NO_CONTENT);
+        final String uri = request.getUri();
+        if (HealthQuery.matches(uri)) {
+            slot.complete(HealthQuery.execute(lifecycle));
+            return;
+        }
+        if (MetricsQuery.matches(uri)) {
+            // reads metrics kept in memory, cheap enough for the event loop
+            slot.complete(MetricsQuery.execute());
+            return;
+        }
+        if (CounterQuery.matches(uri)) {
+            if (!TopicCounter.service.isReady()) {
+                respond(slot, SERVICE_UNAVAILABLE);
+                return;
+            }
+            try {
+                queryExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        slot.complete(CounterQuery.execute(uri));
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                respond(slot, SERVICE_UNAVAILABLE);
+            }
+            return;
+        }
+        if (HotTopicsQuery.matches(uri)) {
+            if (!(messageSink instanceof EmbeddedPipeline)) {
+                // counted by MessageConsumer, the sketches of this process would stay empty
+                respond(slot, NOT_FOUND);
+                return;
+            }
+            if (!TopicCounter.service.isReady()) {
+                respond(slot, SERVICE_UNAVAILABLE);
+                return;
+            }
+            try {
+                queryExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        slot.complete(HotTopicsQuery.execute(uri));
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                respond(slot, SERVICE_UNAVAILABLE);
             }
+            return;
+        }
+        if (QueryParser.isPath(uri, BULK_PATH)) {
+            if (!HttpMethod.POST.equals(request.getMethod())) {
+                respond(slot, METHOD_NOT_ALLOWED);
+                return;
+            }
+            if (!messageSink.getService().isReady()) {
+                // body is ignored as no bulk request is waiting for it
+                respond(slot, SERVICE_UNAVAILABLE);
+                return;
+            }
+            if (HttpHeaders.is100ContinueExpected(request)) {
+                ctx.writeAndFlush(new DefaultFullHttpResponse(HTTP_1_1, CONTINUE));
+            }
+            bulk = new BulkRequest(slot, ctx.alloc(), messageSink, sendExecutor(), BULK_BATCH_SIZE,
+                    BULK_MAX_RECORD_LENGTH, admission, client);
+            return;
+        }
+
+        try {
+            queryParser.parse(uri);
         } catch (IllegalArgumentException iae) {
-            response = new DefaultFullHttpResponse(HTTP_1_1, INTERNAL_SERVER_ERROR);
-            throw iae;
-        } catch (InvalidTopicException ite) {
-            response = new DefaultFullHttpResponse(HTTP_1_1, BAD_REQUEST);
-            throw ite;
-        } finally {
-            ctx.write(response);
-            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-            ReferenceCountUtil.release(msg);
+            logger.debug(iae.getMessage());
+            respond(slot, INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        final String topic = queryParser.topic();
+        final String message = queryParser.message();
+        if (!messageSink.getService().isReady()) {
+            respond(slot, SERVICE_UNAVAILABLE);
+            return;
+        }
+        long wait = admission.admit(client, topic);
+        if (wait != AdmissionControl.ADMITTED) {
+            throttle(slot, wait);
+            return;
+        }
+        if (!messageSink.mayBlock()) {
+            sendMessage(slot, topic, message);
+            return;
+        }
+        try {
+            ingestExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendMessage(slot, topic, message);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            respond(slot, SERVICE_UNAVAILABLE);
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            // idle keep-alive connection, unless it is still waiting for responses
+            if (sequencer.outstanding() == 0) {
+                ctx.close();
+            }
+        } else {
+            super.userEventTriggered(ctx, evt);
         }
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-        cause.printStackTrace();
+        logger.warn("Closing connection of {}", ctx.channel().remoteAddress(), cause);
         ctx.close();
     }
 
     /**
-     * Given a queryString Map, validate that it has both topic and message keys set
-     * @param qs
-     * @throws IllegalArgumentException
+     * Provided topic and message, hand them to the sink.
+     * Respond once the sink acknowledged or rejected the message.
+     * @param slot ResponseSequencer.Slot
+     * @param topic String
+     * @param message String
      */
-    private void validateQueryString(Map<String, List<String>> qs) throws IllegalArgumentException {
-        if (!qs.isEmpty()) {
+    private void sendMessage(final ResponseSequencer.Slot slot, final String topic, String message) {
+        try {
+            messageSink.send(topic, message, new Callback() {
+                @Override
+                public void onCompletion(RecordMetadata metadata, Exception exception) {
+                    if (exception != null) {
+                        logger.warn("Unable to send message to {}", topic, exception);
+                        respond(slot, INTERNAL_SERVER_ERROR);
+                    } else {
+                        // no need to provide a response, we did what was expected of us.
+                        respond(slot, NO_CONTENT);
+                    }
+                }
+            });
+        } catch (InvalidTopicException ite) {
+            respond(slot, BAD_REQUEST);
+        } catch (BufferExhaustedException bee) {
+            respond(slot, SERVICE_UNAVAILABLE);
+        } catch (RuntimeException re) {
+            logger.warn("Unable to send message to {}", topic, re);
+            respond(slot, INTERNAL_SERVER_ERROR);
+        }
+    }
 
-            if (qs.size() > 2) {
-                throw new IllegalArgumentException("Please provide only 2 query parameters");
-            }
+    /**
+     * Write an empty response with provided status, asking the client to come back later if it is a 503.
+     * Safe to call from any thread.
+     * @param slot ResponseSequencer.Slot
+     * @param status HttpResponseStatus
+     */
+    private static void respond(ResponseSequencer.Slot slot, HttpResponseStatus status) {
+        if (status.equals(SERVICE_UNAVAILABLE)) {
+            slot.complete(unavailable());
+        } else {
+            slot.complete(new DefaultFullHttpResponse(HTTP_1_1, status));
+        }
+    }
 
-            if (!qs.containsKey("topic") || !qs.containsKey("message")) {
-                throw new IllegalArgumentException("Please provide both parameters, topic and message");
-            }
+    /**
+     * Build an empty 503 response asking the client to come back later
+     * @return FullHttpResponse
+     */
+    static FullHttpResponse unavailable() {
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, SERVICE_UNAVAILABLE);
+        response.headers().set(HttpHeaders.Names.RETRY_AFTER, RETRY_AFTER_SECONDS);
+        return response;
+    }
 
-        } else {
-            throw new IllegalArgumentException("Missing topic and message query parameters");
+    /**
+     * Turn a request away with 429, asking the client to come back once its rate limit allows it
+     * @param slot ResponseSequencer.Slot
+     * @param waitNanos long
+     */
+    private static void throttle(ResponseSequencer.Slot slot, long waitNanos) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, TOO_MANY_REQUESTS);
+        response.headers().set(HttpHeaders.Names.RETRY_AFTER, retryAfterSeconds(waitNanos));
+        slot.complete(response);
+    }
+
+    /**
+     * Seconds to put in Retry-After for provided wait, rounded up
+     * @param waitNanos long
+     * @return long
+     */
+    static long retryAfterSeconds(long waitNanos) {
+        return Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Address of a client without its port, so every connection of a client shares its rate limit
+     * @param address SocketAddress
+     * @return String
+     */
+    static String clientOf(SocketAddress address) {
+        if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+            return ((InetSocketAddress) address).getAddress().getHostAddress();
+        }
+        return String.valueOf(address);
+    }
+
+    /**
+     * Account for a response being ready
+     * @param started long as returned by requests.start() when its request was read
+     * @param status HttpResponseStatus
+     */
+    static void responded(long started, HttpResponseStatus status) {
+        requests.stop(started);
+        int code = status.code();
+        if (code == SERVICE_UNAVAILABLE.code()) {
+            rejections.mark();
+        } else if (code == TOO_MANY_REQUESTS.code()) {
+            throttled.mark();
+        } else if (code >= 500) {
+            serverErrors.mark();
+        } else if (code >= 400) {
+            clientErrors.mark();
         }
     }
 
     /**
-     * Provided a queryString map, extract topic and message and invoke Producer
-     * @param qs
-     * @throws InvalidTopicException
+     * Executor messages are sent from, the event loop itself if the sink never blocks
+     * @return Executor
+     */
+    private Executor sendExecutor() {
+        return messageSink.mayBlock() ? ingestExecutor : ImmediateExecutor.INSTANCE;
+    }
+
+    /**
+     * Provided a pipeline mode, create the sink
+     * @param mode String kafka or embedded
+     * @return MessageSink
+     * @throws IllegalArgumentException if there is no such mode
      */
-    private void compileAndSendMessage(Map<String, List<String>> qs) throws InvalidTopicException {
-        String topic = qs.get("topic").get(0);
-        String message = qs.get("message").get(0);
-        MessageProducer.sendMessage(topic, message);
+    static MessageSink newSink(String mode) throws IllegalArgumentException {
+        switch (mode) {
+            case "kafka":
+                return new KafkaMessageSink();
+            case "embedded":
+                return new EmbeddedPipeline(PIPELINE_RING_SIZE, PIPELINE_WORKERS);
+            default:
+                throw new IllegalArgumentException("Unknown pipeline mode: " + mode);
+        }
+    }
+
+    /**
+     * Create a fixed size pool of daemon threads whose queue holds at most queueSize tasks.
+     * Tasks submitted while the queue is full are rejected with RejectedExecutionException.
+     * @param name String
+     * @param threads int
+     * @param queueSize int
+     * @return ThreadPoolExecutor
+     */
+    static ThreadPoolExecutor newBoundedExecutor(final String name, int threads, int queueSize) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
     }
 }
@@ -0,0 +1,142 @@
+package com.company.product.test.http;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Sampling;
+import com.yammer.metrics.core.Summarizable;
+import com.yammer.metrics.stats.Snapshot;
+import io.netty.handler.codec.http.FullHttpResponse;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * class MetricsQuery
+ * Answers GET /metrics with every metric of the default registry as JSON, grouped by the class that
+ * registered it. The same metrics are exposed over JMX.
+ * {"com.company.product.test.http.HttpServerHandler":{"requests":{"count":3,"oneMinuteRate":0.5,...,"p99":1.2}}}
+ * Rates are per second, durations of timers in milliseconds.
+ * @author shoaibi
+ * @version 0.1
+ */
+class MetricsQuery {
+
+    /**
+     * Path of metrics queries
+     */
+    static final String PATH = "/metrics";
+
+    /**
+     * Whether uri is a metrics query
+     * @param uri String
+     * @return boolean
+     */
+    static boolean matches(String uri) {
+        return QueryParser.isPath(uri, PATH);
+    }
+
+    /**
+     * Build the response listing all metrics
+     * @return FullHttpResponse
+     */
+    static FullHttpResponse execute() {
+        StringBuilder json = new StringBuilder("{");
+        boolean firstGroup = true;
+        for (Map.Entry<String, SortedMap<MetricName, Metric>> group
+                : Metrics.defaultRegistry().groupedMetrics().entrySet()) {
+            if (!firstGroup) {
+                json.append(',');
+            }
+            firstGroup = false;
+            CounterQuery.appendString(json, group.getKey());
+            json.append(":{");
+            boolean first = true;
+            for (Map.Entry<MetricName, Metric> metric : group.getValue().entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                CounterQuery.appendString(json, metric.getKey().getName());
+                json.append(':');
+                appendMetric(json, metric.getValue());
+            }
+            json.append('}');
+        }
+        json.append('}');
+        return CounterQuery.json(json);
+    }
+
+    /**
+     * Append the values of a metric as a JSON object, or a gauge as its value
+     * @param json StringBuilder
+     * @param metric Metric
+     */
+    private static void appendMetric(StringBuilder json, Metric metric) {
+        if (metric instanceof Gauge) {
+            appendValue(json, ((Gauge<?>) metric).value());
+            return;
+        }
+        json.append('{');
+        if (metric instanceof Counter) {
+            json.append("\"count\":").append(((Counter) metric).count());
+        }
+        if (metric instanceof Histogram) {
+            json.append("\"count\":").append(((Histogram) metric).count());
+        }
+        if (metric instanceof Metered) {
+            Metered metered = (Metered) metric;
+            json.append("\"count\":").append(metered.count());
+            appendField(json, "meanRate", metered.meanRate());
+            appendField(json, "oneMinuteRate", metered.oneMinuteRate());
+            appendField(json, "fiveMinuteRate", metered.fiveMinuteRate());
+            appendField(json, "fifteenMinuteRate", metered.fifteenMinuteRate());
+        }
+        if (metric instanceof Summarizable && metric instanceof Sampling) {
+            Summarizable summary = (Summarizable) metric;
+            Snapshot snapshot = ((Sampling) metric).getSnapshot();
+            appendField(json, "min", summary.min());
+            appendField(json, "mean", summary.mean());
+            appendField(json, "max", summary.max());
+            appendField(json, "p50", snapshot.getMedian());
+            appendField(json, "p75", snapshot.get75thPercentile());
+            appendField(json, "p95", snapshot.get95thPercentile());
+            appendField(json, "p99", snapshot.get99thPercentile());
+            appendField(json, "p999", snapshot.get999thPercentile());
+        }
+        json.append('}');
+    }
+
+    /**
+     * Append a named number, preceded by a comma
+     * @param json StringBuilder
+     * @param name String
+     * @param value double
+     */
+    private static void appendField(StringBuilder json, String name, double value) {
+        json.append(",\"").append(name).append("\":");
+        appendValue(json, value);
+    }
+
+    /**
+     * Append a value as a JSON number, or string if it is not a number. NaN and infinities become null.
+     * @param json StringBuilder
+     * @param value Object
+     */
+    private static void appendValue(StringBuilder json, Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            json.append(Double.isNaN(d) || Double.isInfinite(d) ? "null" : String.valueOf(d));
+        } else if (value instanceof Number || value instanceof Boolean) {
+            json.append(value);
+        } else if (value == null) {
+            json.append("null");
+        } else {
+            CounterQuery.appendString(json, value.toString());
+        }
+    }
+}
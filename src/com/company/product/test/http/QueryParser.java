@@ -0,0 +1,243 @@
+package com.company.product.test.http;
+
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.CharsetUtil;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * class QueryParser
+ * Single pass parser for the topic and message query parameters of an ingest request.
+ * Unlike QueryStringDecoder it builds no parameter map: the uri is scanned once, only the two values we need
+ * are extracted, percent-decoding only happens for values that actually are encoded, and topic names are
+ * taken from a small cache so a hot topic does not cost a new String per request.
+ * An instance is reused for every request of one connection, so it must stay on that connection's event loop.
+ * @author shoaibi
+ * @version 0.1
+ */
+class QueryParser {
+
+    /**
+     * Number of slots of the topic name cache, a power of two
+     */
+    static final int TOPIC_CACHE_SIZE = 1024;
+
+    /**
+     * Direct-mapped cache of recently seen topic names, shared by all connections.
+     * Racy on purpose: a lost update only costs a String allocation and Strings are safe to publish.
+     */
+    private static final String[] topicCache = new String[TOPIC_CACHE_SIZE];
+
+    /**
+     * Up to this many distinct unexpected parameter names are remembered, enough to tell "too many parameters"
+     */
+    private static final int MAX_OTHERS = 3;
+
+    /**
+     * Outcome of the last parse
+     */
+    private String topic;
+    private String message;
+
+    /**
+     * Bounds of the distinct unexpected parameter names of the current parse
+     */
+    private final int[] otherStart = new int[MAX_OTHERS];
+    private final int[] otherEnd = new int[MAX_OTHERS];
+
+    /**
+     * Parse the query string of uri and validate that it has exactly the topic and message parameters
+     * @param uri String
+     * @throws IllegalArgumentException
+     */
+    void parse(String uri) throws IllegalArgumentException {
+        topic = null;
+        message = null;
+        int others = 0;
+        int names = 0;
+
+        int query = uri.indexOf('?');
+        int length = uri.length();
+        int start = query < 0 ? length : query + 1;
+        while (start < length) {
+            int end = start;
+            int equals = -1;
+            while (end < length) {
+                char c = uri.charAt(end);
+                if (c == '&' || c == ';') {
+                    break;
+                }
+                if (c == '=' && equals < 0) {
+                    equals = end;
+                }
+                end++;
+            }
+            int nameEnd = equals < 0 ? end : equals;
+            int valueStart = equals < 0 ? end : equals + 1;
+
+            if (nameEnd > start) {
+                if (isName(uri, start, nameEnd, "topic")) {
+                    if (topic == null) {
+                        topic = topicName(uri, valueStart, end);
+                        names++;
+                    }
+                } else if (isName(uri, start, nameEnd, "message")) {
+                    if (message == null) {
+                        message = value(uri, valueStart, end);
+                        names++;
+                    }
+                } else if (others < MAX_OTHERS && !seen(uri, start, nameEnd, others)) {
+                    otherStart[others] = start;
+                    otherEnd[others] = nameEnd;
+                    others++;
+                    names++;
+                }
+            }
+            start = end + 1;
+        }
+
+        // same checks, messages and order as the QueryStringDecoder based validation this replaces
+        if (names == 0) {
+            throw new IllegalArgumentException("Missing topic and message query parameters");
+        }
+        if (names > 2) {
+            throw new IllegalArgumentException("Please provide only 2 query parameters");
+        }
+        if (topic == null || message == null) {
+            throw new IllegalArgumentException("Please provide both parameters, topic and message");
+        }
+    }
+
+    /**
+     * @return String topic of the last successful parse
+     */
+    String topic() {
+        return topic;
+    }
+
+    /**
+     * @return String message of the last successful parse
+     */
+    String message() {
+        return message;
+    }
+
+    /**
+     * Whether uri points to provided path, ignoring its query string
+     * @param uri String
+     * @param path String
+     * @return boolean
+     */
+    static boolean isPath(String uri, String path) {
+        return uri.startsWith(path) && (uri.length() == path.length() || uri.charAt(path.length()) == '?');
+    }
+
+    /**
+     * First value of a query parameter, null if it is missing
+     * @param params Map<String, List<String>> as decoded by QueryStringDecoder
+     * @param name String
+     * @return String
+     */
+    static String first(Map<String, List<String>> params, String name) {
+        List<String> values = params.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * Whether the parameter name between start and end is provided name
+     * @param uri String
+     * @param start int
+     * @param end int
+     * @param name String
+     * @return boolean
+     */
+    private static boolean isName(String uri, int start, int end, String name) {
+        if (needsDecoding(uri, start, end)) {
+            return name.equals(decode(uri, start, end));
+        }
+        return end - start == name.length() && uri.regionMatches(start, name, 0, name.length());
+    }
+
+    /**
+     * Whether the parameter name between start and end already is one of the unexpected names seen
+     * @param uri String
+     * @param start int
+     * @param end int
+     * @param others int
+     * @return boolean
+     */
+    private boolean seen(String uri, int start, int end, int others) {
+        for (int i = 0; i < others; i++) {
+            if (otherEnd[i] - otherStart[i] == end - start
+                    && uri.regionMatches(otherStart[i], uri, start, end - start)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Extract the value between start and end, decoding it only if needed
+     * @param uri String
+     * @param start int
+     * @param end int
+     * @return String
+     */
+    private static String value(String uri, int start, int end) {
+        return needsDecoding(uri, start, end) ? decode(uri, start, end) : uri.substring(start, end);
+    }
+
+    /**
+     * Extract the topic name between start and end, reusing a cached String when we saw it recently
+     * @param uri String
+     * @param start int
+     * @param end int
+     * @return String
+     */
+    private static String topicName(String uri, int start, int end) {
+        if (needsDecoding(uri, start, end)) {
+            return decode(uri, start, end);
+        }
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + uri.charAt(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (TOPIC_CACHE_SIZE - 1);
+        String cached = topicCache[slot];
+        if (cached != null && cached.length() == end - start && uri.regionMatches(start, cached, 0, end - start)) {
+            return cached;
+        }
+        String name = uri.substring(start, end);
+        topicCache[slot] = name;
+        return name;
+    }
+
+    /**
+     * Whether the text between start and end is percent or plus encoded
+     * @param uri String
+     * @param start int
+     * @param end int
+     * @return boolean
+     */
+    private static boolean needsDecoding(String uri, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = uri.charAt(i);
+            if (c == '%' || c == '+') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode the text between start and end
+     * @param uri String
+     * @param start int
+     * @param end int
+     * @return String
+     */
+    private static String decode(String uri, int start, int end) {
+        return QueryStringDecoder.decodeComponent(uri.substring(start, end), CharsetUtil.UTF_8);
+    }
+}
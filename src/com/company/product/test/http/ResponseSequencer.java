@@ -0,0 +1,170 @@
+package com.company.product.test.http;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+
+/**
+ * class ResponseSequencer
+ * Keeps responses of pipelined requests on one connection in request order.
+ * Every request gets a Slot when it is read, responses completed out of order are held back until all
+ * earlier ones have been written. Reading is paused while too many requests are waiting for a response.
+ * All state is only touched from the channel's event loop.
+ * @author shoaibi
+ * @version 0.1
+ */
+class ResponseSequencer {
+
+    /**
+     * Response placeholder of one request
+     */
+    class Slot {
+        private final long sequence;
+        private final boolean keepAlive;
+        private final long started = HttpServerHandler.requests.start();
+        private FullHttpResponse response;
+
+        private Slot(long sequence, boolean keepAlive) {
+            this.sequence = sequence;
+            this.keepAlive = keepAlive;
+        }
+
+        /**
+         * Provide the response of this request. Safe to call from any thread, exactly once.
+         * @param response FullHttpResponse
+         */
+        void complete(final FullHttpResponse response) {
+            HttpServerHandler.responded(started, response.getStatus());
+            if (ctx.executor().inEventLoop()) {
+                onComplete(this, response);
+            } else {
+                ctx.executor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onComplete(Slot.this, response);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Context of the connection responses are written to
+     */
+    private final ChannelHandlerContext ctx;
+
+    /**
+     * Maximum number of requests waiting for a response before reading is paused
+     */
+    private final int maxOutstanding;
+
+    /**
+     * Sequence given to the next request read
+     */
+    private long nextRequest = 0;
+
+    /**
+     * Sequence of the next response to be written
+     */
+    private long nextResponse = 0;
+
+    /**
+     * Set once a request without keep-alive was read, later requests are ignored
+     */
+    private boolean closing = false;
+
+    /**
+     * Completed responses waiting for earlier ones, keyed by sequence
+     */
+    private final Map<Long, Slot> ready = new HashMap<>();
+
+    /**
+     * @param ctx ChannelHandlerContext
+     * @param maxOutstanding int
+     */
+    ResponseSequencer(ChannelHandlerContext ctx, int maxOutstanding) {
+        this.ctx = ctx;
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    /**
+     * Reserve the response slot of a request that was just read
+     * @param keepAlive boolean whether the connection stays open after this response
+     * @return Slot or null if the connection is closing and the request should be ignored
+     */
+    Slot next(boolean keepAlive) {
+        if (closing) {
+            return null;
+        }
+        closing = !keepAlive;
+        Slot slot = new Slot(nextRequest++, keepAlive);
+        if (outstanding() >= maxOutstanding) {
+            ctx.channel().config().setAutoRead(false);
+        }
+        return slot;
+    }
+
+    /**
+     * Number of requests read but not yet answered
+     * @return int
+     */
+    int outstanding() {
+        return (int) (nextRequest - nextResponse);
+    }
+
+    /**
+     * Store a completed response and write every response that is now next in line
+     * @param slot Slot
+     * @param response FullHttpResponse
+     */
+    private void onComplete(Slot slot, FullHttpResponse response) {
+        if (!ctx.channel().isActive()) {
+            ReferenceCountUtil.release(response);
+            return;
+        }
+        slot.response = response;
+        ready.put(slot.sequence, slot);
+
+        boolean written = false;
+        Slot next;
+        while ((next = ready.remove(nextResponse)) != null) {
+            nextResponse++;
+            prepare(next);
+            if (!next.keepAlive) {
+                ctx.writeAndFlush(next.response).addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            ctx.write(next.response);
+            written = true;
+        }
+        if (written) {
+            ctx.flush();
+        }
+        if (!ctx.channel().config().isAutoRead() && outstanding() < maxOutstanding) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * Set the headers a persistent connection needs for the client to find the end of the response
+     * @param slot Slot
+     */
+    private static void prepare(Slot slot) {
+        FullHttpResponse response = slot.response;
+        if (!response.getStatus().equals(NO_CONTENT)) {
+            HttpHeaders.setContentLength(response, response.content().readableBytes());
+        }
+        if (slot.keepAlive) {
+            response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        } else {
+            response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.company.product.test.lifecycle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * class Lifecycle
+ * Starts the services a process is made of in parallel and stops them in order.
+ * Every service starts on its own thread as soon as the services it depends on are ready, so independent ones
+ * (e.g. the Hbase counter store and the kafka producer) connect at the same time and nothing waits for a
+ * service it does not need. A service that fails to start is retried every retryMillis until it starts or
+ * either it or the lifecycle is stopped, so a process comes up on its own once a host it needs is reachable again.
+ * Services are stopped in the reverse order they were added, dependencies being added before what depends on
+ * them, so every service can still rely on its dependencies while it drains.
+ * @author shoaibi
+ * @version 0.1
+ */
+public class Lifecycle {
+
+    /**
+     * How long to wait between attempts of starting a service that failed, in milliseconds
+     */
+    static final long RETRY_MILLIS = Long.getLong("lifecycle.retryMillis", 5000);
+
+    /**
+     * How long stopping waits for a service that is still starting, in milliseconds
+     */
+    static final long STOP_WAIT_MILLIS = Long.getLong("lifecycle.stopWaitMillis", 10000);
+
+    /**
+     * Services in the order they were added, dependencies first
+     */
+    private final List<Service> services = new ArrayList<>();
+
+    /**
+     * Set once stop() was called, starting threads give up
+     */
+    private volatile boolean stopping = false;
+
+    /**
+     * Add a service, along with the services it depends on that were not added yet
+     * @param service Service
+     * @return Lifecycle
+     */
+    public synchronized Lifecycle add(Service service) {
+        if (services.contains(service)) {
+            return this;
+        }
+        for (Service dependency : service.getDependencies()) {
+            add(dependency);
+        }
+        service.manage();
+        services.add(service);
+        return this;
+    }
+
+    /**
+     * Services added so far, dependencies first
+     * @return List<Service>
+     */
+    public synchronized List<Service> getServices() {
+        return Collections.unmodifiableList(new ArrayList<>(services));
+    }
+
+    /**
+     * Start every service on its own thread and return right away, see isReady() and awaitReady() for progress
+     */
+    public synchronized void startAsync() {
+        for (final Service service : services) {
+            Thread starter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    startWhenReady(service);
+                }
+            }, "start-" + service.getName());
+            // a process that has to wait for its services to come up does so with awaitReady()
+            starter.setDaemon(true);
+            starter.start();
+        }
+    }
+
+    /**
+     * Whether every service is ready
+     * @return boolean
+     */
+    public boolean isReady() {
+        for (Service service : getServices()) {
+            if (!service.isReady()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait until every service is ready
+     * @param timeoutMillis long
+     * @return boolean whether every service is ready
+     * @throws InterruptedException
+     */
+    public boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Service service : getServices()) {
+            if (!service.awaitReady(Math.max(0, deadline - System.currentTimeMillis()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait until every service is ready, or until one of them or the lifecycle is stopped
+     * @return boolean whether every service is ready
+     * @throws InterruptedException
+     */
+    public boolean awaitReady() throws InterruptedException {
+        for (Service service : getServices()) {
+            while (!service.awaitReady(RETRY_MILLIS)) {
+                if (stopping || isStopped(service)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop every service, the last added first. Services still starting are given a while to finish.
+     */
+    public void stop() {
+        stopping = true;
+        List<Service> reversed = new ArrayList<>(getServices());
+        Collections.reverse(reversed);
+        for (Service service : reversed) {
+            service.stop(STOP_WAIT_MILLIS);
+        }
+    }
+
+    /**
+     * Have the services stopped on jvm shutdown, for processes with nothing else to stop first
+     */
+    public void stopOnShutdown() {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        }, "lifecycle-shutdown"));
+    }
+
+    /**
+     * Start a service once its dependencies are ready, retrying until it starts or the lifecycle stops
+     * @param service Service
+     */
+    private void startWhenReady(Service service) {
+        try {
+            for (Service dependency : service.getDependencies()) {
+                while (!dependency.awaitReady(RETRY_MILLIS)) {
+                    if (stopping || isStopped(dependency) || isStopped(service)) {
+                        return;
+                    }
+                }
+            }
+            while (!service.start()) {
+                if (stopping || isStopped(service)) {
+                    return;
+                }
+                Thread.sleep(RETRY_MILLIS);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Whether a service was stopped, after which it is not started again
+     * @param service Service
+     * @return boolean
+     */
+    private static boolean isStopped(Service service) {
+        Service.State state = service.getState();
+        return state == Service.State.STOPPING || state == Service.State.STOPPED;
+    }
+}
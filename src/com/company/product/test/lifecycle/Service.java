@@ -0,0 +1,279 @@
+package com.company.product.test.lifecycle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * class Service
+ * Something that has to connect, create or load things before it can be used, and release them when done:
+ * the counter store, the kafka producer, the consumer. Instead of doing that work in static initializers on
+ * first use, where a failure is swallowed or turns into NoClassDefFoundError and an unreachable host stalls
+ * whoever came first, a service is started explicitly, reports its state and the failure it started with,
+ * and can be started again after failing.
+ * Starting runs doStart() and then doWarmUp(), which preloads what the first requests would otherwise wait for.
+ * Warming up is best effort, a service whose warm up failed is ready all the same.
+ * Services are usually started and stopped by a @see Lifecycle, along with the services they depend on.
+ * Callers outside of one, e.g. tools and benchmarks, use startLazily() instead.
+ * @author shoaibi
+ * @version 0.1
+ */
+public abstract class Service {
+
+    /**
+     * Where a service is in its life
+     */
+    public enum State {
+        NEW, STARTING, WARMING_UP, READY, FAILED, STOPPING, STOPPED
+    }
+
+    static final Logger logger = LoggerFactory.getLogger(Service.class);
+
+    /**
+     * Name the service is reported under
+     */
+    private final String name;
+
+    /**
+     * Services that have to be ready before this one starts
+     */
+    private final List<Service> dependencies;
+
+    /**
+     * Current state, changes are signalled on this
+     */
+    private volatile State state = State.NEW;
+
+    /**
+     * Why the last start failed, null unless FAILED
+     */
+    private volatile Throwable failure;
+
+    /**
+     * Set once a @see Lifecycle manages this service, which then starts and stops it
+     */
+    private volatile boolean managed = false;
+
+    /**
+     * Held while starting and stopping, so neither runs twice at once nor overlaps the other
+     */
+    private final ReentrantLock transition = new ReentrantLock();
+
+    /**
+     * @param name String
+     * @param dependencies Service[] services to be ready before this one starts
+     */
+    protected Service(String name, Service... dependencies) {
+        this.name = name;
+        this.dependencies = Collections.unmodifiableList(Arrays.asList(dependencies));
+    }
+
+    /**
+     * Connect, create or load whatever the service needs. Called again after a failed start, so release what
+     * a failed attempt got hold of before throwing.
+     * @throws Exception
+     */
+    protected abstract void doStart() throws Exception;
+
+    /**
+     * Preload what the first requests would otherwise wait for, e.g. region locations or topic metadata.
+     * Does nothing unless overridden.
+     * @throws Exception
+     */
+    protected void doWarmUp() throws Exception {
+    }
+
+    /**
+     * Finish in-flight work and release whatever doStart() got hold of
+     */
+    protected abstract void doStop();
+
+    /**
+     * Start the service on the calling thread unless it is ready already, waiting for a start under way.
+     * Dependencies are not started, they have to be ready.
+     * @return boolean whether the service is ready
+     */
+    public final boolean start() {
+        transition.lock();
+        try {
+            if (state == State.READY) {
+                return true;
+            }
+            if (state != State.NEW && state != State.FAILED) {
+                return false;
+            }
+            for (Service dependency : dependencies) {
+                if (!dependency.isReady()) {
+                    fail(new IllegalStateException(dependency.getName() + " is not ready"));
+                    return false;
+                }
+            }
+            setState(State.STARTING);
+            long started = System.nanoTime();
+            try {
+                doStart();
+            } catch (Exception | LinkageError e) {
+                fail(e);
+                return false;
+            }
+            setState(State.WARMING_UP);
+            try {
+                doWarmUp();
+            } catch (Exception e) {
+                logger.warn("Unable to warm up {}, starting cold", name, e);
+            }
+            failure = null;
+            setState(State.READY);
+            logger.info("{} ready in {} ms", name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            return true;
+        } finally {
+            transition.unlock();
+        }
+    }
+
+    /**
+     * Start on the calling thread, for callers using the service without a @see Lifecycle. The first start
+     * also has the service stopped on jvm shutdown. A service managed by a Lifecycle is only waited for.
+     * @throws IllegalStateException if the service could not be started, with the failure as its cause
+     */
+    public final void startLazily() throws IllegalStateException {
+        if (state == State.READY) {
+            return;
+        }
+        if (managed) {
+            throw new IllegalStateException(name + " is not ready: " + state, failure);
+        }
+        boolean first = state == State.NEW;
+        if (!start()) {
+            throw new IllegalStateException("Unable to start " + name, failure);
+        }
+        if (first) {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    stop(0);
+                }
+            }, name + "-shutdown"));
+        }
+    }
+
+    /**
+     * Stop the service, unless it never started. A start still under way is given up to waitMillis to finish.
+     * @param waitMillis long
+     */
+    public final void stop(long waitMillis) {
+        try {
+            if (!transition.tryLock(waitMillis, TimeUnit.MILLISECONDS)) {
+                logger.warn("{} is still {}, leaving it behind", name, state);
+                return;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            if (state == State.STOPPED || state == State.STOPPING) {
+                return;
+            }
+            if (state == State.NEW || state == State.FAILED) {
+                // nothing to release, a failed start released what it had
+                setState(State.STOPPED);
+                return;
+            }
+            setState(State.STOPPING);
+            try {
+                doStop();
+            } catch (RuntimeException re) {
+                logger.warn("Unable to stop {} cleanly", name, re);
+            }
+            setState(State.STOPPED);
+            logger.info("{} stopped", name);
+        } finally {
+            transition.unlock();
+        }
+    }
+
+    /**
+     * Wait until the service is ready, or gave up on starting
+     * @param timeoutMillis long
+     * @return boolean whether the service is ready
+     * @throws InterruptedException
+     */
+    public final synchronized boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (state != State.READY && state != State.STOPPING && state != State.STOPPED) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                break;
+            }
+            wait(left);
+        }
+        return state == State.READY;
+    }
+
+    /**
+     * @return String
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return List<Service>
+     */
+    public List<Service> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * @return State
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return Throwable why the last start failed, null if it did not
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return boolean
+     */
+    public boolean isReady() {
+        return state == State.READY;
+    }
+
+    /**
+     * Hand the service over to a @see Lifecycle
+     */
+    void manage() {
+        managed = true;
+    }
+
+    /**
+     * Record a failed start
+     * @param cause Throwable
+     */
+    private void fail(Throwable cause) {
+        failure = cause;
+        setState(State.FAILED);
+        logger.warn("Unable to start {}: {}", name, String.valueOf(cause));
+        logger.debug("Start of {} failed", name, cause);
+    }
+
+    /**
+     * @param state State
+     */
+    private synchronized void setState(State state) {
+        this.state = state;
+        notifyAll();
+    }
+}
@@ -0,0 +1,61 @@
+package com.company.product.test.metrics;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Timer;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class SampledTimer
+ * Rate and latency of events on hot paths: every event marks a meter registered as name, one in SAMPLING is
+ * also timed into a timer registered as name-latency, as updating a timer costs several times a meter mark.
+ * @author shoaibi
+ * @version 0.1
+ */
+public class SampledTimer {
+
+    /**
+     * Events per timed one, 1 to time every event
+     */
+    public static final int SAMPLING = Math.max(1, Integer.getInteger("metrics.timerSampling", 32));
+
+    private final Meter meter;
+    private final Timer timer;
+
+    /**
+     * Register the meter and timer of provided name
+     * @param klass Class<?> the metrics are grouped under
+     * @param name String
+     * @param eventType String what is counted, e.g. requests
+     */
+    public SampledTimer(Class<?> klass, String name, String eventType) {
+        meter = Metrics.newMeter(klass, name, eventType, TimeUnit.SECONDS);
+        timer = Metrics.newTimer(klass, name + "-latency", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Start of an event, to be passed to @see stop() once it is over
+     * @return long System.nanoTime() if the event is to be timed, 0 otherwise
+     */
+    public long start() {
+        if (SAMPLING > 1 && ThreadLocalRandom.current().nextInt(SAMPLING) != 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        // 0 means not timed, nanoTime() may well return it
+        return now == 0 ? 1 : now;
+    }
+
+    /**
+     * Count an event, and time it if it was picked when it started
+     * @param started long as returned by @see start()
+     */
+    public void stop(long started) {
+        meter.mark();
+        if (started != 0) {
+            timer.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.company.product.test.queue;
+
+import com.company.product.test.db.TopicCounter;
+import kafka.consumer.ConsumerIterator;
+import kafka.javaapi.consumer.ConsumerConnector;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * class ConsumerCheckpointer
+ * Ties offset commits to counter flushes so a crash does not lose the messages of a batch: counting is
+ * at-least-once. Workers consume messages under a shared lock. A checkpoint takes the exclusive lock, so no
+ * message is half way between being consumed and being counted, flushes @see TopicCounter and only commits the
+ * offsets once the flush made it to Hbase. A checkpoint happens every batchSize messages or maxLatencyMillis,
+ * whichever comes first.
+ * Flushing and committing are not atomic: a crash after the flush but before the commit, or after a flush that
+ * applied only some topics, has kafka deliver the batch again and its messages are counted twice.
+ * With a write-ahead log the log is committed instead, before the offsets, and the counters are flushed after
+ * them. Replay then covers exactly the committed offsets, and only a crash between the two commits counts twice.
+ * @author shoaibi
+ * @version 0.1
+ */
+class ConsumerCheckpointer {
+
+    /**
+     * Connector whose offsets are committed
+     */
+    private final ConsumerConnector connector;
+
+    /**
+     * Messages per checkpoint
+     */
+    private final long batchSize;
+
+    /**
+     * Held shared while consuming a message, exclusively while checkpointing
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Messages consumed since the last checkpoint
+     */
+    private final AtomicLong uncommitted = new AtomicLong();
+
+    /**
+     * Set when a logged checkpoint did not flush every counter, the next one retries them. Guarded by this.
+     */
+    private boolean unflushed = false;
+
+    /**
+     * Runs the time based checkpoints
+     */
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Setup the checkpointer and start the time based checkpoints
+     * @param connector ConsumerConnector
+     * @param batchSize long
+     * @param maxLatencyMillis long
+     */
+    ConsumerCheckpointer(ConsumerConnector connector, long batchSize, long maxLatencyMillis) {
+        this.connector = connector;
+        this.batchSize = batchSize;
+        // the batch is flushed by us, not whenever the counter buffer fills up
+        TopicCounter.setAutoFlush(false);
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "consumer-checkpoint");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkpoint();
+            }
+        }, maxLatencyMillis, maxLatencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take the next message off the iterator and count it, checkpointing if the batch is full.
+     * Only call once it.hasNext() returned true.
+     * @param it ConsumerIterator<byte[], byte[]>
+     */
+    void consumeNext(ConsumerIterator<byte[], byte[]> it) {
+        lock.readLock().lock();
+        try {
+            // next() moves the consumed offset, so it has to happen under the same lock as the increment
+            TopicCounter.increment(it.next().topic());
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (uncommitted.incrementAndGet() >= batchSize) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Flush counters of everything consumed so far and commit offsets if the flush succeeded, or with a
+     * write-ahead log commit it and the offsets, then flush
+     * @return boolean true if offsets were committed (or there was nothing to commit)
+     */
+    synchronized boolean checkpoint() {
+        if (uncommitted.get() == 0 && !unflushed) {
+            return true;
+        }
+        lock.writeLock().lock();
+        try {
+            if (TopicCounter.isLogged()) {
+                commitLogged();
+                return true;
+            }
+            if (!TopicCounter.flush()) {
+                // counters go back into the buffer, the next checkpoint retries them along with newer ones
+                return false;
+            }
+            connector.commitOffsets();
+            uncommitted.set(0);
+            return true;
+        } catch (RuntimeException re) {
+            System.err.println("Unable to commit offsets, will retry");
+            re.printStackTrace();
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Commit the log, then the offsets, then flush. Only call with the exclusive lock held.
+     * @throws RuntimeException if either commit failed
+     */
+    private void commitLogged() throws RuntimeException {
+        long previous = TopicCounter.commitLog();
+        try {
+            connector.commitOffsets();
+        } catch (RuntimeException re) {
+            // kafka delivers these messages again, replay must not count them too
+            TopicCounter.rollbackLog(previous);
+            throw re;
+        }
+        uncommitted.set(0);
+        unflushed = !TopicCounter.flush();
+        if (unflushed) {
+            // the counters that did not make it were logged again past the commit
+            TopicCounter.commitLog();
+        }
+    }
+
+    /**
+     * Stop time based checkpoints and take a last one. Workers must have stopped consuming already.
+     */
+    void close() {
+        timer.shutdown();
+        checkpoint();
+    }
+}
@@ -0,0 +1,243 @@
+package com.company.product.test.queue;
+
+import com.company.product.test.db.TopicCounter;
+import com.company.product.test.lifecycle.Service;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import kafka.common.InvalidTopicException;
+import kafka.common.Topic;
+import org.apache.kafka.clients.producer.BufferExhaustedException;
+import org.apache.kafka.clients.producer.Callback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * class EmbeddedPipeline
+ * Counts messages in process instead of going through Kafka, for single node deployments and for measuring
+ * what the broker hop costs. Messages are validated like @see MessageProducer does, queued on a bounded
+ * @see RingBuffer and drained by worker threads calling @see TopicCounter.increment(), just like
+ * @see MessageConsumer would. Callbacks run on the workers once the message has been counted.
+ * Workers start along with its service, once the counters are ready, and stopping the service waits for them
+ * to count what is still queued, failing the callbacks of messages that slipped in past the workers.
+ * Nothing is persisted before counting, so messages still queued when the jvm dies are lost.
+ * @author shoaibi
+ * @version 0.1
+ */
+public class EmbeddedPipeline implements MessageSink {
+
+    /**
+     * Empty polls a worker spins through before it starts yielding, and then parking
+     */
+    private static final int SPIN_POLLS = 100;
+    private static final int YIELD_POLLS = 200;
+
+    /**
+     * How long an idle worker parks between polls, in nanoseconds
+     */
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    static final Logger logger = LoggerFactory.getLogger(EmbeddedPipeline.class);
+
+    /**
+     * Messages counted
+     */
+    static final Meter counted = Metrics.newMeter(EmbeddedPipeline.class, "counted", "messages", TimeUnit.SECONDS);
+
+    /**
+     * A message waiting to be counted
+     */
+    private static final class Event {
+        final String topicName;
+        final Callback callback;
+
+        Event(String topicName, Callback callback) {
+            this.topicName = topicName;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Messages waiting to be counted
+     */
+    private final RingBuffer<Event> buffer;
+
+    /**
+     * Number of threads draining buffer
+     */
+    private final int workerCount;
+
+    /**
+     * Threads draining buffer, new ones every time the service starts
+     */
+    private volatile Thread[] workers = new Thread[0];
+
+    /**
+     * Set once the workers started, cleared by close(), workers stop once buffer is drained
+     */
+    private volatile boolean running = false;
+
+    /**
+     * Lifecycle of the pipeline, depending on the counters its workers increment
+     */
+    private final Service service = new Service("pipeline", TopicCounter.service) {
+        @Override
+        protected void doStart() {
+            Thread[] started = new Thread[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                started[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                }, "pipeline-worker-" + (i + 1));
+                started[i].setDaemon(true);
+            }
+            workers = started;
+            running = true;
+            for (Thread worker : started) {
+                worker.start();
+            }
+        }
+
+        @Override
+        protected void doStop() {
+            close();
+        }
+    };
+
+    /**
+     * Setup the workers, they start with the service
+     * @param capacity int messages that may wait to be counted, rounded up to a power of two
+     * @param workerCount int
+     */
+    public EmbeddedPipeline(int capacity, int workerCount) {
+        buffer = new RingBuffer<>(capacity);
+        this.workerCount = workerCount;
+        Metrics.newGauge(EmbeddedPipeline.class, "backlog", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return backlog();
+            }
+        });
+    }
+
+    @Override
+    public void send(String topicName, String messageContent, Callback callback)
+            throws InvalidTopicException, BufferExhaustedException {
+        if (!running) {
+            throw new IllegalStateException("Embedded pipeline is not running");
+        }
+        // same rules kafka applies, there is just no topic to create
+        Topic.validate(topicName);
+        if (!buffer.offer(new Event(topicName, callback))) {
+            throw new BufferExhaustedException(buffer.capacity() + " messages already waiting to be counted");
+        }
+        if (!running) {
+            // closed while offering, the workers may be gone already
+            abandon();
+        }
+    }
+
+    @Override
+    public boolean mayBlock() {
+        return false;
+    }
+
+    @Override
+    public Service getService() {
+        return service;
+    }
+
+    /**
+     * Number of messages waiting to be counted
+     * @return int
+     */
+    public int backlog() {
+        return buffer.size();
+    }
+
+    /**
+     * Stop accepting messages and wait for the workers to count the ones already queued
+     */
+    public void close() {
+        running = false;
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        abandon();
+    }
+
+    /**
+     * Fail the callbacks of messages queued once the pipeline stopped
+     */
+    private void abandon() {
+        Event event;
+        while ((event = buffer.poll()) != null) {
+            complete(event, new IllegalStateException("Embedded pipeline stopped before counting the message"));
+        }
+    }
+
+    /**
+     * Worker loop: count messages as they come, backing off from spinning to parking while there are none
+     */
+    private void drain() {
+        int idlePolls = 0;
+        while (true) {
+            Event event = buffer.poll();
+            if (event == null) {
+                if (!running) {
+                    return;
+                }
+                idlePolls++;
+                if (idlePolls > SPIN_POLLS + YIELD_POLLS) {
+                    LockSupport.parkNanos(PARK_NANOS);
+                } else if (idlePolls > SPIN_POLLS) {
+                    Thread.yield();
+                }
+                continue;
+            }
+            idlePolls = 0;
+            count(event);
+        }
+    }
+
+    /**
+     * Count a message and report the outcome to its callback
+     * @param event Event
+     */
+    private void count(Event event) {
+        Exception failure = null;
+        try {
+            TopicCounter.increment(event.topicName);
+            counted.mark();
+        } catch (RuntimeException re) {
+            failure = re;
+        }
+        complete(event, failure);
+    }
+
+    /**
+     * Report the outcome of a message to its callback
+     * @param event Event
+     * @param failure Exception null if the message was counted
+     */
+    private void complete(Event event, Exception failure) {
+        if (event.callback != null) {
+            try {
+                // there is no broker to assign partitions or offsets, so no metadata either
+                event.callback.onCompletion(null, failure);
+            } catch (RuntimeException re) {
+                logger.warn("Callback of a message to {} failed", event.topicName, re);
+            }
+        }
+    }
+}
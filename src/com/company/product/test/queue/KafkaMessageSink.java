@@ -0,0 +1,32 @@
+package com.company.product.test.queue;
+
+import com.company.product.test.lifecycle.Service;
+import kafka.common.InvalidTopicException;
+import org.apache.kafka.clients.producer.BufferExhaustedException;
+import org.apache.kafka.clients.producer.Callback;
+
+/**
+ * class KafkaMessageSink
+ * Publishes messages to Kafka through @see MessageProducer, for @see MessageConsumer to count them
+ * @author shoaibi
+ * @version 0.1
+ */
+public class KafkaMessageSink implements MessageSink {
+
+    @Override
+    public void send(String topicName, String messageContent, Callback callback)
+            throws InvalidTopicException, BufferExhaustedException {
+        MessageProducer.sendMessageAsync(topicName, messageContent, callback);
+    }
+
+    @Override
+    public boolean mayBlock() {
+        // the first message of a topic goes through zookeeper
+        return true;
+    }
+
+    @Override
+    public Service getService() {
+        return MessageProducer.service;
+    }
+}
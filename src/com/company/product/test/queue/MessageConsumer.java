@@ -1,81 +1,327 @@
 package com.company.product.test.queue;
 
 import com.company.product.test.db.TopicCounter;
+import com.company.product.test.lifecycle.Lifecycle;
+import com.company.product.test.lifecycle.Service;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
 import kafka.consumer.Consumer;
 import kafka.consumer.ConsumerConfig;
 import kafka.consumer.ConsumerIterator;
+import kafka.consumer.ConsumerTimeoutException;
 import kafka.consumer.KafkaStream;
+import kafka.consumer.Whitelist;
 import kafka.javaapi.consumer.ConsumerConnector;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * class MessageConsumer
- * Class that talks with kafka and consumes messages provided for specified topic by asking
+ * Class that talks with kafka and consumes messages provided for specified topics by asking
  * @see TopicCounter.increment()
+ * Each topic is read through several streams (ideally one per partition), every stream being drained by
+ * its own worker thread.
+ * Connecting to zookeeper and opening the streams happens when its service starts, once the counters are ready.
+ * Stopping the service stops the workers, takes a last checkpoint and disconnects before the counters are flushed
+ * and closed.
  * @author shoaibi
  * @version 0.1
  */
 public class MessageConsumer extends  Thread {
     /**
-     * Topic name to bind consumer to
+     * Command line switch to consume all topics matching a regular expression instead of a list of topics
      */
-    String topicName;
+    static final String WHITELIST_SWITCH = "--whitelist";
 
     /**
-     * Consume connector that binds to the kafka zookeeper
+     * Streams opened per topic, or in total when consuming a whitelist. More streams than partitions sit idle.
      */
-    static ConsumerConnector consumerConnector;
+    static final int STREAMS = Integer.getInteger("consumer.streams", 1);
 
     /**
-     * Initialize consumerConnector
+     * Consumer group offsets are tracked under
+     */
+    static final String GROUP_ID = System.getProperty("consumer.groupId", "test-group");
+
+    /**
+     * Whether offsets are committed in checkpoints coordinated with counter flushes instead of auto-committed
+     */
+    static final boolean CHECKPOINT = Boolean.getBoolean("consumer.checkpoint");
+
+    /**
+     * Messages per checkpoint
+     */
+    static final long CHECKPOINT_BATCH_SIZE = Long.getLong("consumer.checkpoint.batchSize", 10000);
+
+    /**
+     * Maximum time between checkpoints, in milliseconds
+     */
+    static final long CHECKPOINT_MAX_LATENCY_MILLIS = Long.getLong("consumer.checkpoint.maxLatencyMillis", 5000);
+
+    /**
+     * How long a worker waits for a message before checking whether it should stop, in milliseconds
+     */
+    static final int POLL_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * Topic names to bind consumer to, null when consuming a whitelist
+     */
+    List<String> topicNames;
+
+    /**
+     * Regular expression of topic names to bind consumer to, null when consuming a list of topics
+     */
+    String whitelist;
+
+    /**
+     * Cleared to make the workers stop
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Commits offsets after counter flushes, null when offsets are auto-committed
+     */
+    private ConsumerCheckpointer checkpointer;
+
+    /**
+     * Name of the gauges kafka keeps the lag of every partition fetched in, in messages
+     */
+    static final String PARTITION_LAG_METRIC = "ConsumerLag";
+
+    /**
+     * Messages consumed and counted
+     */
+    static final Meter consumed = Metrics.newMeter(MessageConsumer.class, "consumed", "messages", TimeUnit.SECONDS);
+
+    /**
+     * Consume connector that binds to the kafka zookeeper, connected when service starts
+     */
+    private ConsumerConnector consumerConnector;
+
+    /**
+     * Streams of all topics we are bound to, drained once the thread runs
+     */
+    private List<KafkaStream<byte[], byte[]>> streams;
+
+    /**
+     * Lifecycle of the consumer: starting connects, opens the streams and starts consuming them
+     */
+    final Service service = new Service("consumer", TopicCounter.service) {
+        @Override
+        protected void doStart() {
+            connect();
+            MessageConsumer.this.start();
+        }
+
+        @Override
+        protected void doStop() {
+            shutdown();
+        }
+    };
+
+    /**
+     * Expose the lag of everything consumed
      */
     static {
-        Properties properties = new Properties();
-        properties.put("zookeeper.connect", MessageProducer.HOST + ":" + MessageProducer.ZOOKEEPER_PORT);
-        properties.put("group.id","test-group");
-        ConsumerConfig consumerConfig = new ConsumerConfig(properties);
-        consumerConnector = Consumer.createJavaConsumerConnector(consumerConfig);
+        Metrics.newGauge(MessageConsumer.class, "lag", new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return lag();
+            }
+        });
     }
 
     /**
-     * Class's entry point. Pass topic name to bind consume to.
+     * Class's entry point. Pass topic names to bind consume to, or --whitelist followed by a regular expression.
      * @param argv String[]
      * @throws IllegalArgumentException
      */
     public static void main(String[] argv) throws IllegalArgumentException {
-        if (argv.length != 1 || argv[0] == null)
-        {
-            throw new IllegalArgumentException(String.valueOf(MessageConsumer.class.toString() + "accepts only one parameter e.g. topicName"));
+        final MessageConsumer mc;
+        if (argv.length == 2 && WHITELIST_SWITCH.equals(argv[0]) && argv[1] != null) {
+            mc = new MessageConsumer(argv[1]);
+        } else if (argv.length > 0 && !WHITELIST_SWITCH.equals(argv[0])) {
+            mc = new MessageConsumer(Arrays.asList(argv));
+        } else {
+            throw new IllegalArgumentException(String.valueOf(MessageConsumer.class.toString()
+                    + " accepts either topic names e.g. topic1 topic2, or " + WHITELIST_SWITCH + " regex"));
+        }
+        if (TopicCounter.isLogged()) {
+            if (!CHECKPOINT) {
+                throw new IllegalArgumentException("counter.wal.dir needs consumer.checkpoint, the log is committed "
+                        + "along with the offsets");
+            }
+            // kafka delivers whatever was not committed again, so the log must not replay it too
+            TopicCounter.setLogCommits(true);
+        }
+        // counters start right away and the consumer once they are ready, both stop in reverse order on shutdown
+        Lifecycle lifecycle = new Lifecycle().add(mc.service);
+        lifecycle.stopOnShutdown();
+        lifecycle.startAsync();
+        try {
+            // the start threads are daemons, keep the jvm up until the consumer runs on its own threads
+            lifecycle.awaitReady();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
         }
-        MessageConsumer mc = new MessageConsumer(argv[0]);
-        mc.start();
     }
 
     /**
-     * Set topic name to consume messages of.
-     * @param topic String
+     * Set topic names to consume messages of.
+     * @param topics List<String>
+     */
+    MessageConsumer(List<String> topics) {
+        topicNames = topics;
+    }
+
+    /**
+     * Set regular expression of topic names to consume messages of.
+     * @param whitelist String
+     */
+    MessageConsumer(String whitelist) {
+        this.whitelist = whitelist;
+    }
+
+    /**
+     * Connect to zookeeper and open the streams, disconnecting again if that fails
      */
-    MessageConsumer(String topic) {
-        topicName = topic;
+    private void connect() {
+        Properties properties = new Properties();
+        properties.put("zookeeper.connect", MessageProducer.HOST + ":" + MessageProducer.ZOOKEEPER_PORT);
+        properties.put("group.id", GROUP_ID);
+        properties.put("auto.commit.enable", String.valueOf(!CHECKPOINT));
+        // lets workers notice they should stop even when no messages come in
+        properties.put("consumer.timeout.ms", String.valueOf(POLL_TIMEOUT_MILLIS));
+        ConsumerConnector connector = Consumer.createJavaConsumerConnector(new ConsumerConfig(properties));
+        try {
+            consumerConnector = connector;
+            streams = createStreams();
+        } catch (RuntimeException re) {
+            connector.shutdown();
+            throw re;
+        }
+        if (CHECKPOINT) {
+            checkpointer = new ConsumerCheckpointer(consumerConnector, CHECKPOINT_BATCH_SIZE,
+                    CHECKPOINT_MAX_LATENCY_MILLIS);
+        }
     }
 
     @Override
     public void run() {
+        ExecutorService workers = Executors.newFixedThreadPool(streams.size(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "consumer-stream-" + count.incrementAndGet());
+            }
+        });
+        for (final KafkaStream<byte[], byte[]> stream : streams) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    consume(stream);
+                }
+            });
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the workers, take a last checkpoint if checkpointing and disconnect from kafka
+     */
+    void shutdown() {
+        running = false;
+        try {
+            join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (checkpointer != null) {
+            checkpointer.close();
+        }
+        if (consumerConnector != null) {
+            consumerConnector.shutdown();
+        }
+    }
+
+    /**
+     * Open the streams of all topics we are bound to
+     * @return List<KafkaStream<byte[], byte[]>>
+     */
+    private List<KafkaStream<byte[], byte[]>> createStreams() {
+        if (whitelist != null) {
+            return consumerConnector.createMessageStreamsByFilter(new Whitelist(whitelist), STREAMS);
+        }
         Map<String, Integer> topicCountMap = new HashMap<>();
-        topicCountMap.put(topicName, 1);
+        for (String topicName : topicNames) {
+            topicCountMap.put(topicName, STREAMS);
+        }
         Map<String, List<KafkaStream<byte[], byte[]>>> consumerMap = consumerConnector.createMessageStreams(topicCountMap);
-        KafkaStream<byte[], byte[]> stream =  consumerMap.get(topicName).get(0);
+        List<KafkaStream<byte[], byte[]>> streams = new ArrayList<>();
+        for (List<KafkaStream<byte[], byte[]>> topicStreams : consumerMap.values()) {
+            streams.addAll(topicStreams);
+        }
+        return streams;
+    }
+
+    /**
+     * Drain a stream until asked to stop, counting every message against its topic
+     * @param stream KafkaStream<byte[], byte[]>
+     */
+    private void consume(KafkaStream<byte[], byte[]> stream) {
         ConsumerIterator<byte[], byte[]> it = stream.iterator();
-        while(it.hasNext()) {
-            // ask TopicCounter to increment count for the topic name.
-            TopicCounter.increment(topicName);
-            //System.out.println(new String(it.next().message()));
-            it.next();
+        while (running) {
+            try {
+                if (!it.hasNext()) {
+                    return;
+                }
+            } catch (ConsumerTimeoutException cte) {
+                // nothing arrived for a while, check whether we should stop and keep waiting
+                continue;
+            }
+            if (checkpointer != null) {
+                checkpointer.consumeNext(it);
+            } else {
+                // ask TopicCounter to increment count for the topic name of the message.
+                TopicCounter.increment(it.next().topic());
+            }
+            consumed.mark();
         }
+    }
 
+    /**
+     * Messages waiting to be consumed, summed over the partitions kafka reports a lag for
+     * @return long
+     */
+    static long lag() {
+        long lag = 0;
+        for (Map.Entry<MetricName, Metric> metric : Metrics.defaultRegistry().allMetrics().entrySet()) {
+            if (PARTITION_LAG_METRIC.equals(metric.getKey().getName()) && metric.getValue() instanceof Gauge) {
+                Object value = ((Gauge<?>) metric.getValue()).value();
+                if (value instanceof Number) {
+                    lag += ((Number) value).longValue();
+                }
+            }
+        }
+        return lag;
     }
-}
\ No newline at end of file
+}
@@ -1,14 +1,27 @@
 package com.company.product.test.queue;
 
-import kafka.admin.AdminUtils;
+import com.company.product.test.lifecycle.Service;
+import com.company.product.test.metrics.SampledTimer;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
 import kafka.common.InvalidTopicException;
-import kafka.javaapi.producer.Producer;
-import kafka.producer.KeyedMessage;
-import kafka.producer.ProducerConfig;
-import kafka.utils.ZKStringSerializer$;
-import org.I0Itec.zkclient.ZkClient;
+import org.apache.kafka.clients.producer.BufferExhaustedException;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * class Message Producer
@@ -35,37 +48,190 @@ abstract public class MessageProducer {
     final static short ZOOKEEPER_PORT = 2181;
 
     /**
-     * Kafka Producer instance used to produce messages
+     * Maximum number of bytes the producer batches per partition before sending
      */
-    static Producer<String,String> producer;
+    static final int BATCH_SIZE = Integer.getInteger("producer.batchSize", 16384);
 
     /**
-     * Setup the Kafka Producer instance
+     * How long the producer waits for more messages to fill a batch, in milliseconds
      */
+    static final long LINGER_MILLIS = Long.getLong("producer.lingerMillis", 5);
+
+    /**
+     * Maximum number of messages handed to the producer but not yet acknowledged by the broker
+     */
+    static final int MAX_IN_FLIGHT = Integer.getInteger("producer.maxInFlight", 10000);
+
+    /**
+     * Topics whose partitions are looked up (and which are created if missing) while warming up, comma separated
+     */
+    static final String WARMUP_TOPICS = System.getProperty("producer.warmupTopics", "");
+
+    /**
+     * Long-lived Kafka Producer instance used to produce messages, sends are batched in the background.
+     * Created when service starts, unless something else was put here before.
+     */
+    static volatile Producer<String,String> producer;
+
+    /**
+     * Permits for messages in flight, bounds the memory held by queued sends
+     */
+    static final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
+    /**
+     * Whether missing topics are created through zookeeper. Turn off when brokers auto-create topics,
+     * names are then only validated.
+     */
+    static final boolean CREATE_TOPICS = Boolean.parseBoolean(System.getProperty("producer.createTopics", "true"));
+
+    /**
+     * Topics already known to exist, so zookeeper is only consulted for new ones
+     */
+    static final TopicCache topicCache = new TopicCache(CREATE_TOPICS ? HOST + ":" + ZOOKEEPER_PORT : null,
+            Integer.getInteger("producer.topicCache.size", 10000),
+            Long.getLong("producer.topicCache.ttlMillis", 600000),
+            Long.getLong("producer.topicCache.negativeTtlMillis", 30000));
+
+    static final Logger logger = LoggerFactory.getLogger(MessageProducer.class);
+
+    /**
+     * Time from handing a message to the producer until the broker acknowledged or rejected it
+     */
+    static final SampledTimer sends = new SampledTimer(MessageProducer.class, "sends", "messages");
+
+    /**
+     * Messages the broker did not accept, and messages turned away because too many were in flight
+     */
+    static final Meter sendFailures = Metrics.newMeter(MessageProducer.class, "send-failures", "messages",
+            TimeUnit.SECONDS);
+    static final Meter sendRejections = Metrics.newMeter(MessageProducer.class, "send-rejections", "messages",
+            TimeUnit.SECONDS);
+
     static {
-        Properties properties = new Properties();
-        properties.put("metadata.broker.list", HOST + ":" + BROKER_PORT);
-        properties.put("serializer.class","kafka.serializer.StringEncoder");
-        properties.put("request.required.acks", "1");
-        ProducerConfig producerConfig = new ProducerConfig(properties);
-        System.out.println("Broker Connect: " + properties.get("metadata.broker.list"));
-        producer = new Producer<>(producerConfig);
+        Metrics.newGauge(MessageProducer.class, "in-flight", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return MAX_IN_FLIGHT - inFlight.availablePermits();
+            }
+        });
     }
 
     /**
-     * Produce a message with provided topic name and message.
+     * Lifecycle of the producer: starting creates the Kafka Producer instance, warming up fetches the partitions
+     * of WARMUP_TOPICS so their first messages do not wait for metadata. Stopping sends whatever is still batched.
+     * Used without a @see com.company.product.test.lifecycle.Lifecycle, the first message starts it.
+     */
+    public static final Service service = new Service("producer") {
+        @Override
+        protected void doStart() {
+            if (producer == null) {
+                Properties properties = new Properties();
+                properties.put("bootstrap.servers", HOST + ":" + BROKER_PORT);
+                properties.put("acks", "1");
+                properties.put("batch.size", String.valueOf(BATCH_SIZE));
+                properties.put("linger.ms", String.valueOf(LINGER_MILLIS));
+                System.out.println("Broker Connect: " + properties.get("bootstrap.servers"));
+                producer = new KafkaProducer<>(properties, new StringSerializer(), new StringSerializer());
+            }
+        }
+
+        @Override
+        protected void doWarmUp() {
+            for (String topicName : WARMUP_TOPICS.split(",")) {
+                topicName = topicName.trim();
+                if (!topicName.isEmpty()) {
+                    createTopicIfMissing(topicName);
+                    int partitions = producer.partitionsFor(topicName).size();
+                    System.out.println("Found " + partitions + " partitions of " + topicName);
+                }
+            }
+        }
+
+        @Override
+        protected void doStop() {
+            producer.close();
+            topicCache.close();
+        }
+    };
+
+    /**
+     * Produce a message with provided topic name and message and wait for the broker to acknowledge it.
      * Create a topic if it does not exist
      * @param topicName String
      * @param messageContent String
+     * @throws InvalidTopicException
+     * @throws KafkaException
      */
     public static void sendMessage(String topicName, String messageContent)
+    {
+        logger.debug("Sending: {}://{}", topicName, messageContent);
+        try {
+            sendMessageAsync(topicName, messageContent, null).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new KafkaException("Interrupted while sending to " + topicName, ie);
+        } catch (ExecutionException ee) {
+            throw new KafkaException("Unable to send to " + topicName, ee.getCause());
+        }
+        logger.debug("Message Sent");
+    }
+
+    /**
+     * Produce a message with provided topic name and message without waiting for the broker.
+     * Create a topic if it does not exist.
+     * The returned Future completes, and callback (if any) is invoked, once the broker acknowledged or
+     * rejected the message. Throw BufferExhaustedException right away if too many messages are in flight.
+     * @param topicName String
+     * @param messageContent String
+     * @param callback Callback
+     * @return Future<RecordMetadata>
+     * @throws InvalidTopicException
+     * @throws BufferExhaustedException
+     */
+    public static Future<RecordMetadata> sendMessageAsync(String topicName, String messageContent,
+                                                          final Callback callback)
+            throws InvalidTopicException, BufferExhaustedException
     {
         createTopicIfMissing(topicName);
-        System.out.println("Sending: " + topicName + "://" + messageContent);
-        KeyedMessage<String, String> message = new KeyedMessage<>(topicName, messageContent);
-        producer.send(message);
-        System.out.println("Message Sent");
-        producer.close();
+        Producer<String, String> sending = producer;
+        if (sending == null) {
+            service.startLazily();
+            sending = producer;
+        }
+        if (!inFlight.tryAcquire()) {
+            sendRejections.mark();
+            throw new BufferExhaustedException(MAX_IN_FLIGHT + " messages already in flight");
+        }
+        final long started = sends.start();
+        try {
+            return sending.send(new ProducerRecord<String, String>(topicName, messageContent), new Callback() {
+                @Override
+                public void onCompletion(RecordMetadata metadata, Exception exception) {
+                    inFlight.release();
+                    sends.stop(started);
+                    if (exception != null) {
+                        sendFailures.mark();
+                    }
+                    if (callback != null) {
+                        callback.onCompletion(metadata, exception);
+                    }
+                }
+            });
+        } catch (RuntimeException re) {
+            // send failed before the message was queued, the callback will never run
+            inFlight.release();
+            sendFailures.mark();
+            throw re;
+        }
+    }
+
+    /**
+     * Send whatever is still batched, then release the producer and the zookeeper client used for topic
+     * management. Same as stopping service, which whoever started it does on jvm shutdown.
+     */
+    public static void close()
+    {
+        service.stop(0);
     }
 
     /**
@@ -76,21 +242,6 @@ abstract public class MessageProducer {
      */
     private static void createTopicIfMissing(String topicName) throws InvalidTopicException
     {
-        final short numberOfPartitions = 1;
-        final short replicationFactor = 1;
-        final int sessionTimeout = 100000;
-        final int connectTimeout = 100000;
-        Properties topicConfig = new Properties();
-        System.out.println("ZooKeeper Connect: " + HOST + ":" + ZOOKEEPER_PORT);
-        ZkClient zkClient = new ZkClient(HOST + ":" + ZOOKEEPER_PORT, sessionTimeout, connectTimeout, ZKStringSerializer$.MODULE$);
-        if (!AdminUtils.topicExists(zkClient, topicName))
-        {
-            AdminUtils.createTopic(zkClient, topicName, numberOfPartitions, replicationFactor, topicConfig);
-            System.out.println(topicName + " topic created.");
-        }
-        else
-        {
-            System.out.println(topicName + " topic exists.");
-        }
+        topicCache.ensureExists(topicName);
     }
 }
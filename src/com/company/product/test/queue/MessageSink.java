@@ -0,0 +1,41 @@
+package com.company.product.test.queue;
+
+import com.company.product.test.lifecycle.Service;
+import kafka.common.InvalidTopicException;
+import org.apache.kafka.clients.producer.BufferExhaustedException;
+import org.apache.kafka.clients.producer.Callback;
+
+/**
+ * interface MessageSink
+ * Where accepted messages are handed to: Kafka through @see MessageProducer, or straight to the counters
+ * through @see EmbeddedPipeline when everything runs on one machine.
+ * @author shoaibi
+ * @version 0.1
+ */
+public interface MessageSink {
+
+    /**
+     * Hand a message over without waiting for it to be processed.
+     * callback is invoked once the message was accepted or rejected downstream.
+     * @param topicName String
+     * @param messageContent String
+     * @param callback Callback
+     * @throws InvalidTopicException
+     * @throws BufferExhaustedException if too many messages are waiting already
+     */
+    void send(String topicName, String messageContent, Callback callback)
+            throws InvalidTopicException, BufferExhaustedException;
+
+    /**
+     * Whether send() may block, e.g. on a zookeeper round trip, in which case it must not be called on an
+     * event loop
+     * @return boolean
+     */
+    boolean mayBlock();
+
+    /**
+     * Lifecycle of whatever the sink sends through, messages are only handed over while it is ready
+     * @return Service
+     */
+    Service getService();
+}
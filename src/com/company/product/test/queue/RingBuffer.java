@@ -0,0 +1,121 @@
+package com.company.product.test.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * class RingBuffer
+ * Bounded lock-free queue for many producers and many consumers over a preallocated array.
+ * Every slot carries a sequence number telling whether it is free for the producer of a given lap or holds an
+ * element for the consumer of that lap, so producers and consumers only contend on a single CAS each and
+ * nothing is allocated per element. Adapted from Dmitry Vyukov's bounded MPMC queue.
+ * @author shoaibi
+ * @version 0.1
+ */
+class RingBuffer<E> {
+
+    /**
+     * Elements, indexed by position & mask
+     */
+    private final Object[] elements;
+
+    /**
+     * Sequence of every slot: position when free for the producer of position, position + 1 when holding its
+     * element
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * Capacity - 1, capacity being a power of two
+     */
+    private final int mask;
+
+    /**
+     * Next position to offer at and to poll from
+     */
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity int rounded up to a power of two
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        elements = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element, unless the buffer is full
+     * @param element E
+     * @return boolean false if the buffer is full
+     */
+    boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    // publishes the element to the consumer of this position
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // slot still holds the element of the previous lap
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Take the oldest element, if any
+     * @return E null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = (E) elements[index];
+                    elements[index] = null;
+                    // frees the slot for the producer of the next lap
+                    sequences.lazySet(index, position + mask + 1);
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Number of elements waiting, approximate while producers or consumers are active
+     * @return int
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * Number of elements the buffer holds at most
+     * @return int
+     */
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,224 @@
+package com.company.product.test.queue;
+
+import kafka.admin.AdminUtils;
+import kafka.common.InvalidTopicException;
+import kafka.common.Topic;
+import kafka.common.TopicExistsException;
+import kafka.utils.ZKStringSerializer$;
+import org.I0Itec.zkclient.ZkClient;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * class TopicCache
+ * Remembers which topics are known to exist (or known to be invalid) so @see MessageProducer only talks to
+ * zookeeper the first time it sees a topic. Lookups for the same missing topic are collapsed into a single
+ * zookeeper round trip, the other callers wait for its outcome instead of racing to create the topic.
+ * @author shoaibi
+ * @version 0.1
+ */
+class TopicCache {
+
+    /**
+     * Outcome of a topic lookup along with the time it stops being trusted
+     */
+    private static final class Entry {
+        final InvalidTopicException invalid;
+        final long expiresAt;
+
+        Entry(InvalidTopicException invalid, long expiresAt) {
+            this.invalid = invalid;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Zookeeper connect string, null to only validate names and leave creating topics to the brokers
+     */
+    private final String zkConnect;
+
+    /**
+     * Maximum number of topics remembered
+     */
+    private final int maxEntries;
+
+    /**
+     * How long an existing topic is trusted to still exist, in milliseconds
+     */
+    private final long ttlMillis;
+
+    /**
+     * How long an invalid topic name is remembered as such, in milliseconds
+     */
+    private final long negativeTtlMillis;
+
+    /**
+     * Known topics and their lookup outcome
+     */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Lookups currently talking to zookeeper, keyed by topic name
+     */
+    private final ConcurrentHashMap<String, FutureTask<Entry>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Long-lived zookeeper client, created on first miss
+     */
+    private ZkClient zkClient = null;
+
+    /**
+     * @param zkConnect String null to only validate names
+     * @param maxEntries int
+     * @param ttlMillis long
+     * @param negativeTtlMillis long
+     */
+    TopicCache(String zkConnect, int maxEntries, long ttlMillis, long negativeTtlMillis) {
+        this.zkConnect = zkConnect;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+    /**
+     * Make sure provided topic exists, creating it if it does not.
+     * Throw exception if the topic name is not valid.
+     * @param topicName String
+     * @throws InvalidTopicException
+     */
+    void ensureExists(String topicName) throws InvalidTopicException {
+        Entry entry = entries.get(topicName);
+        if (entry == null || entry.expiresAt < System.currentTimeMillis()) {
+            entry = lookup(topicName);
+        }
+        if (entry.invalid != null) {
+            throw entry.invalid;
+        }
+    }
+
+    /**
+     * Resolve a topic through zookeeper, or wait for the lookup another thread already started
+     * @param topicName String
+     * @return Entry
+     */
+    private Entry lookup(final String topicName) {
+        FutureTask<Entry> task = new FutureTask<>(new Callable<Entry>() {
+            @Override
+            public Entry call() {
+                Entry entry = resolve(topicName);
+                remember(topicName, entry);
+                return entry;
+            }
+        });
+        FutureTask<Entry> running = inFlight.putIfAbsent(topicName, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(topicName, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while looking up topic " + topicName, ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Unable to look up topic " + topicName, cause);
+        }
+    }
+
+    /**
+     * Validate the topic name, then check zookeeper and create the topic if it is missing
+     * @param topicName String
+     * @return Entry
+     */
+    private Entry resolve(String topicName) {
+        final int numberOfPartitions = 1;
+        final int replicationFactor = 1;
+        try {
+            Topic.validate(topicName);
+            if (zkConnect == null) {
+                return new Entry(null, System.currentTimeMillis() + ttlMillis);
+            }
+            ZkClient zk = getZkClient();
+            if (!AdminUtils.topicExists(zk, topicName)) {
+                try {
+                    AdminUtils.createTopic(zk, topicName, numberOfPartitions, replicationFactor, new Properties());
+                    System.out.println(topicName + " topic created.");
+                } catch (TopicExistsException tee) {
+                    // someone else (another producer instance) beat us to it, that's just as good
+                }
+            }
+            return new Entry(null, System.currentTimeMillis() + ttlMillis);
+        } catch (InvalidTopicException ite) {
+            return new Entry(ite, System.currentTimeMillis() + negativeTtlMillis);
+        }
+    }
+
+    /**
+     * Store an entry, making room first if the cache is full
+     * @param topicName String
+     * @param entry Entry
+     */
+    private void remember(String topicName, Entry entry) {
+        if (entries.size() >= maxEntries) {
+            evict();
+        }
+        entries.put(topicName, entry);
+    }
+
+    /**
+     * Drop expired entries, and if that was not enough, arbitrary ones until a quarter of the cache is free
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expiresAt < now) {
+                it.remove();
+            }
+        }
+        it = entries.entrySet().iterator();
+        while (entries.size() > maxEntries * 3 / 4 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Get the shared zookeeper client, connecting it if this is the first call
+     * @return ZkClient
+     */
+    private synchronized ZkClient getZkClient() {
+        final int sessionTimeout = 100000;
+        final int connectTimeout = 100000;
+        if (zkClient == null) {
+            System.out.println("ZooKeeper Connect: " + zkConnect);
+            zkClient = new ZkClient(zkConnect, sessionTimeout, connectTimeout, ZKStringSerializer$.MODULE$);
+        }
+        return zkClient;
+    }
+
+    /**
+     * Close the zookeeper client, a later miss would open a new one
+     */
+    synchronized void close() {
+        if (zkClient != null) {
+            zkClient.close();
+            zkClient = null;
+        }
+    }
+}